@@ -0,0 +1,36 @@
+package jengine.physics;
+
+import java.util.SplittableRandom;
+
+/**
+ * Seeded scene builders shared by the benchmarks, so every run measures the same particles.
+ */
+final class Fixtures {
+  static final long SEED = 0x5EEDL;
+
+  private Fixtures() {}
+
+  /**
+   * A square world sized for roughly a quarter packing density at the given radius.
+   */
+  static float worldSize(int count, float radius) {
+    return (float) Math.ceil(Math.sqrt(count * radius * radius * 16f));
+  }
+
+  /**
+   * Dynamic particles at uniformly random positions inside the world, with small random
+   * velocities.
+   */
+  static Particles randomParticles(int count, float size, float radius) {
+    SplittableRandom random = new SplittableRandom(SEED);
+    Particles p = new Particles(count);
+    for (int i = 0; i < count; i++) {
+      float x = radius + (float) random.nextDouble() * (size - radius * 2f);
+      float y = radius + (float) random.nextDouble() * (size - radius * 2f);
+      float vx = (float) random.nextDouble(-2, 2);
+      float vy = (float) random.nextDouble(-2, 2);
+      p.add(x, y, x - vx, y - vy, radius, 1f, true);
+    }
+    return p;
+  }
+}
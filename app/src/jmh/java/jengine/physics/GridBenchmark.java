@@ -0,0 +1,91 @@
+package jengine.physics;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GridBenchmark {
+  private static final float RADIUS = 3f;
+  // how far each particle drifts between rebuilds, about a substep of a lively scene
+  private static final float JITTER = 0.3f;
+
+  @Param({"1000", "10000", "100000"})
+  public int particles;
+
+  // a bounded grid rebuilt from scratch, the same maintained incrementally, or an unbounded
+  // grid, which always rebuilds
+  @Param({"dense", "incremental", "hashed"})
+  public String layout;
+
+  private Grid grid;
+  private Particles state;
+  private Blackhole blackhole;
+  private PairConsumer sink;
+  // two sets of positions a jitter apart, swapped into the store by reference before every
+  // rebuild so that particles move between rebuilds without the move being timed
+  private float[][] xs;
+  private float[][] ys;
+  private int positions = 0;
+
+  @Setup
+  public void setUp(Blackhole blackhole) {
+    float size = Fixtures.worldSize(particles, RADIUS);
+    state = Fixtures.randomParticles(particles, size, RADIUS);
+    grid = new Grid(RADIUS * 2f);
+    grid.setIncremental(layout.equals("incremental"));
+    if (!layout.equals("hashed"))
+      grid.setBounds(0f, 0f, size, size);
+    this.blackhole = blackhole;
+    this.sink = (i, j) -> this.blackhole.consume(i + j);
+    SplittableRandom random = new SplittableRandom(Fixtures.SEED);
+    float[] jitteredX = state.x.clone();
+    float[] jitteredY = state.y.clone();
+    for (int i = 0; i < particles; i++) {
+      jitteredX[i] = clamp(jitteredX[i] + (float) random.nextDouble(-JITTER, JITTER), size);
+      jitteredY[i] = clamp(jitteredY[i] + (float) random.nextDouble(-JITTER, JITTER), size);
+    }
+    xs = new float[][] {state.x, jitteredX};
+    ys = new float[][] {state.y, jitteredY};
+    grid.rebuild(state);
+  }
+
+  private static float clamp(float position, float size) {
+    return Math.max(RADIUS, Math.min(size - RADIUS, position));
+  }
+
+  @Benchmark
+  public void rebuild() {
+    move();
+    grid.rebuild(state);
+  }
+
+  @Benchmark
+  public void forEachPair() {
+    grid.forEach(sink);
+  }
+
+  @Benchmark
+  public void rebuildAndForEachPair() {
+    move();
+    grid.rebuild(state);
+    grid.forEach(sink);
+  }
+
+  private void move() {
+    positions ^= 1;
+    state.x = xs[positions];
+    state.y = ys[positions];
+  }
+}
@@ -0,0 +1,54 @@
+package jengine.physics;
+
+import jengine.JEngine;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PhysicsWorldBenchmark {
+  private static final float DT = 1f / 120f;
+  private static final float RADIUS = 3f;
+
+  @Param({"1000", "10000", "100000"})
+  public int particles;
+
+  @Param({"1", "2", "4", "8"})
+  public int subSteps;
+
+  @Param({"rect", "circle", "none"})
+  public String border;
+
+  private PhysicsWorld world;
+  private Particles state;
+
+  // rebuilt every iteration, since an unbordered scene falls away and drifts between iterations
+  @Setup(Level.Iteration)
+  public void setUp() {
+    float size = Fixtures.worldSize(particles, RADIUS);
+    world = new PhysicsWorld(size, size);
+    world.setBorder(switch (border) {
+      case "rect" -> JEngine.BORDER_RECT;
+      case "circle" -> JEngine.BORDER_CIRCLE;
+      default -> JEngine.BORDER_NONE;
+    });
+    state = Fixtures.randomParticles(particles, size, RADIUS);
+  }
+
+  @Benchmark
+  public Particles step() {
+    world.step(state, DT, subSteps);
+    return state;
+  }
+}
@@ -0,0 +1,70 @@
+package jengine.physics;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class VectorBenchmark {
+  private Vector a;
+  private Vector b;
+
+  @Setup
+  public void setUp() {
+    a = new Vector(3.5f, -1.25f);
+    b = new Vector(-0.75f, 2f);
+  }
+
+  @Benchmark
+  public Vector add() {
+    return a.clone().add(b);
+  }
+
+  @Benchmark
+  public Vector sub() {
+    return a.clone().sub(b);
+  }
+
+  @Benchmark
+  public float dot() {
+    return a.dot(b);
+  }
+
+  @Benchmark
+  public float magnitude() {
+    return a.magnitude();
+  }
+
+  @Benchmark
+  public Vector normalise() {
+    return a.clone().normalise();
+  }
+
+  @Benchmark
+  public Vector staticAdd() {
+    return Vector.add(a, b);
+  }
+
+  @Benchmark
+  public Vector staticSub() {
+    return Vector.sub(a, b);
+  }
+
+  @Benchmark
+  public Vector staticScale() {
+    return Vector.scale(a, 0.5);
+  }
+
+  @Benchmark
+  public Vector normal() {
+    return Vector.normal(a);
+  }
+}
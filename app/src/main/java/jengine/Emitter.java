@@ -0,0 +1,192 @@
+package jengine;
+
+import jengine.objects.Atom;
+
+import java.util.Random;
+
+/**
+ * A source of particles for a {@link Scene}: every physics step it spawns however many particles
+ * its rate owes, flying out in a cone around its direction, and the scene appends them to the
+ * particle store in one bulk insert. Particles leave from a point, or from a line across the
+ * direction if the emitter has a width, and each starts a random fraction of a step along its
+ * path, so even thousands emitted in one step start spread out instead of on top of each other.
+ *
+ * Speeds are in world units per second and angles in radians, with y pointing down. The world
+ * reads a particle's velocity as its displacement over one sub-step, so the emitter scales the
+ * speed down to that.
+ */
+public class Emitter {
+  private float x;
+  private float y;
+  private float direction = 0f;
+  private float spread = 0f;
+  private float width = 0f;
+  private float minSpeed = 100f;
+  private float maxSpeed = 100f;
+  private float minRadius = Atom.RADIUS_SMALL;
+  private float maxRadius = Atom.RADIUS_SMALL;
+  private float mass = Atom.MASS_DEFAULT;
+  private float rate = 0f;
+  private long limit = Long.MAX_VALUE;
+  private long emitted = 0;
+  // fractional particles owed by the rate, and particles asked for by burst()
+  private double owed = 0;
+  private int burst = 0;
+  private final Random random = new Random();
+
+  // the particles of the batch being emitted, read by the scene's bulk insert
+  float[] batchX = new float[0];
+  float[] batchY = new float[0];
+  float[] batchPrevX = new float[0];
+  float[] batchPrevY = new float[0];
+  float[] batchRadius = new float[0];
+  int[] batchColour = new int[0];
+
+  public Emitter(float x, float y) {
+    setPosition(x, y);
+  }
+
+  public void setPosition(float x, float y) {
+    this.x = x;
+    this.y = y;
+  }
+
+  /**
+   * Aim the emitter.
+   *
+   * @param direction the angle of the middle of the cone, from the positive x axis
+   * @param spread the full angle of the cone, from 0 for a jet to 2 pi for every direction
+   */
+  public void setDirection(float direction, float spread) {
+    if (!(spread >= 0))
+      throw new IllegalArgumentException("spread must not be negative");
+    this.direction = direction;
+    this.spread = spread;
+  }
+
+  /**
+   * Set the length of the line across the direction that particles leave from, or 0 to emit from
+   * a point.
+   */
+  public void setWidth(float width) {
+    if (!(width >= 0))
+      throw new IllegalArgumentException("width must not be negative");
+    this.width = width;
+  }
+
+  /**
+   * Give each particle a speed drawn uniformly from a range.
+   */
+  public void setSpeed(float min, float max) {
+    if (!(min >= 0 && max >= min))
+      throw new IllegalArgumentException("invalid speed range");
+    minSpeed = min;
+    maxSpeed = max;
+  }
+
+  /**
+   * Give each particle a radius drawn uniformly from a range; equal bounds give every particle
+   * the same radius.
+   */
+  public void setRadius(float min, float max) {
+    if (!(min > 0 && max >= min))
+      throw new IllegalArgumentException("invalid radius range");
+    minRadius = min;
+    maxRadius = max;
+  }
+
+  public void setMass(float mass) {
+    if (!(mass > 0))
+      throw new IllegalArgumentException("mass must be positive");
+    this.mass = mass;
+  }
+
+  /**
+   * Set how many particles to emit per second of simulated time, or 0 to only emit bursts.
+   */
+  public void setRate(float perSecond) {
+    if (!(perSecond >= 0))
+      throw new IllegalArgumentException("rate must not be negative");
+    rate = perSecond;
+  }
+
+  /**
+   * Set the most particles this emitter spawns over its lifetime, counting those spawned already.
+   */
+  public void setLimit(long total) {
+    if (total < 0)
+      throw new IllegalArgumentException("limit must not be negative");
+    limit = total;
+  }
+
+  public void setSeed(long seed) {
+    random.setSeed(seed);
+  }
+
+  /**
+   * Emit some particles at the next step on top of those the rate owes.
+   */
+  public void burst(int count) {
+    if (count < 0)
+      throw new IllegalArgumentException("burst count must not be negative");
+    burst += count;
+  }
+
+  /**
+   * @return the particles spawned so far
+   */
+  public long emitted() {
+    return emitted;
+  }
+
+  public float mass() {
+    return mass;
+  }
+
+  /*
+   * Take how many particles are due over a step of dt seconds.
+   */
+  int due(float dt) {
+    owed += rate * dt;
+    long n = (long) owed + burst;
+    owed -= (long) owed;
+    burst = 0;
+    return (int) Math.min(Math.min(n, limit - emitted), Integer.MAX_VALUE);
+  }
+
+  /*
+   * Fill the batch arrays with n particles, coloured by the scene, for a step of dt seconds split
+   * into subSteps sub-steps.
+   */
+  void generate(int n, float dt, int subSteps, Scene scene) {
+    if (batchX.length < n) {
+      int capacity = Math.max(n, batchX.length * 2);
+      batchX = new float[capacity];
+      batchY = new float[capacity];
+      batchPrevX = new float[capacity];
+      batchPrevY = new float[capacity];
+      batchRadius = new float[capacity];
+      batchColour = new int[capacity];
+    }
+    float acrossX = -(float) Math.sin(direction);
+    float acrossY = (float) Math.cos(direction);
+    for (int k = 0; k < n; k++) {
+      float angle = direction + (random.nextFloat() - 0.5f) * spread;
+      float step = (minSpeed + random.nextFloat() * (maxSpeed - minSpeed)) * dt / subSteps;
+      float vx = (float) Math.cos(angle) * step;
+      float vy = (float) Math.sin(angle) * step;
+      float offset = (random.nextFloat() - 0.5f) * width;
+      // a whole step's path is subSteps sub-step displacements long
+      float along = random.nextFloat() * subSteps;
+      float px = x + acrossX * offset + vx * along;
+      float py = y + acrossY * offset + vy * along;
+      batchX[k] = px;
+      batchY[k] = py;
+      batchPrevX[k] = px - vx;
+      batchPrevY[k] = py - vy;
+      batchRadius[k] = minRadius + random.nextFloat() * (maxRadius - minRadius);
+      batchColour[k] = scene.nextColour();
+    }
+    emitted += n;
+  }
+}
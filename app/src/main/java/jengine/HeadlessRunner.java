@@ -0,0 +1,382 @@
+package jengine;
+
+import jengine.gfx.Renderer;
+import jengine.gfx.SoftwareBackend;
+import jengine.metrics.CsvReporter;
+import jengine.metrics.Metrics;
+import jengine.objects.Atom;
+import jengine.physics.Particles;
+import jengine.physics.PhysicsWorld;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Drives a PhysicsWorld and Scene without a window and reports throughput. Nothing here touches
+ * GLFW or OpenGL, so it runs on machines without a display or GPU.
+ *
+ * <pre>
+ * HeadlessRunner [--particles N] [--steps N] [--warmup N] [--substeps N] [--pattern P]
+ *                [--border B] [--radius R] [--size WxH] [--threads N] [--sleep T] [--seed N]
+ *                [--broadphase B] [--simd on|off]
+ *                [--reorder N] [--metrics FILE]
+ *                [--frames DIR] [--frame-format png|raw] [--frame-every N]
+ * </pre>
+ *
+ * Patterns are {@code grid} (a packed lattice), {@code random} (uniform positions and velocities),
+ * {@code stream} (a jet from the top-left corner, a few particles per step until the target count
+ * is reached) and {@code emit} (an {@link Emitter} along the top edge, spawning in bulk until the
+ * target count is reached after half a simulated second). Borders are {@code rect}, {@code circle}
+ * and {@code none}; without a border, particles that leave the world are culled, so a run whose
+ * scene is mostly gone after warm-up is refused. Broadphases are {@code auto}, {@code uniform}, {@code hierarchical} and
+ * {@code sap}. With {@code --metrics}, the timed steps are measured phase by phase and a CSV row is
+ * written to the file every second. With {@code --frames}, every Nth timed step is drawn by the
+ * software rasteriser, on as many threads as the physics, and written to the directory as a
+ * numbered PNG or raw RGBA file; frame output is not counted in the step latencies.
+ */
+public class HeadlessRunner {
+  public static final int PATTERN_GRID = 0;
+  public static final int PATTERN_RANDOM = 1;
+  public static final int PATTERN_STREAM = 2;
+  public static final int PATTERN_EMIT = 3;
+
+  private static final float DT = 1f / 120f;
+  private static final int STREAM_PER_STEP = 8;
+  private static final float EMIT_SECONDS = 0.5f;
+
+  private final PhysicsWorld world;
+  private final Scene scene;
+  private final Random random;
+  private final int particles;
+  private final int pattern;
+  private final float radius;
+  private int subSteps = 2;
+  private CsvReporter metricsReport = null;
+  private Renderer frameRenderer = null;
+  private SoftwareBackend frameBackend;
+  private Path frameDir;
+  private boolean rawFrames;
+  private int frameEvery;
+  private int framesWritten = 0;
+  private long stepsRun = 0;
+  private long renderNanos = 0;
+  private long writeNanos = 0;
+  // particles stepped, summed over steps, since the scene can shrink or grow as it runs
+  private long particleSteps = 0;
+
+  public HeadlessRunner(float width, float height, int particles, int pattern, float radius,
+      long seed) {
+    this.world = new PhysicsWorld(width, height);
+    this.scene = new Scene(Math.max(1, particles), JEngine.POOL_GROW);
+    this.particles = particles;
+    this.pattern = pattern;
+    this.radius = radius;
+    this.random = new Random(seed);
+  }
+
+  public PhysicsWorld world() {
+    return world;
+  }
+
+  public Scene scene() {
+    return scene;
+  }
+
+  public void setSubSteps(int subSteps) {
+    if (subSteps < 1)
+      throw new IllegalArgumentException("substeps must be at least 1");
+    this.subSteps = subSteps;
+  }
+
+  /**
+   * Poll a reporter after every step, and measure the world into the reporter's metrics.
+   */
+  public void setMetricsReport(CsvReporter report, Metrics metrics) {
+    this.metricsReport = report;
+    world.setMetrics(metrics);
+  }
+
+  /**
+   * Draw every some number of steps run by {@link #run(int)} into a numbered image file.
+   *
+   * @param raw whether to write raw RGBA bytes instead of PNGs
+   * @param threads the threads to rasterise on
+   */
+  public void setFrameOutput(Path dir, boolean raw, int every, int threads) {
+    if (every < 1)
+      throw new IllegalArgumentException("frame interval must be at least 1");
+    frameBackend = new SoftwareBackend((int) Math.ceil(world.width()),
+        (int) Math.ceil(world.height()));
+    frameBackend.setParallelism(threads);
+    frameRenderer = new Renderer(frameBackend);
+    frameRenderer.setViewport(0, 0, frameBackend.width(), frameBackend.height());
+    frameDir = dir;
+    rawFrames = raw;
+    frameEvery = every;
+  }
+
+  public int framesWritten() {
+    return framesWritten;
+  }
+
+  /**
+   * Spawn the initial particles of the chosen pattern. The stream and emit patterns spawn nothing
+   * up front and instead feed particles in from {@link #step()}.
+   */
+  public void populate() {
+    float width = world.width();
+    float height = world.height();
+    switch (pattern) {
+      case PATTERN_GRID -> {
+        float spacing = radius * 2f;
+        int perRow = Math.max(1, (int) ((width - spacing) / spacing));
+        for (int i = 0; i < particles; i++) {
+          float x = radius + spacing * (i % perRow) + random.nextFloat() * 0.01f;
+          float y = height - radius - spacing * (i / perRow);
+          scene.spawnObjectDynamic(new float[] {x, y}, radius);
+        }
+      }
+      case PATTERN_RANDOM -> {
+        for (int i = 0; i < particles; i++) {
+          float x = radius + random.nextFloat() * (width - radius * 2f);
+          float y = radius + random.nextFloat() * (height - radius * 2f);
+          float[] vel = scene.scaleVelocity(new float[] {
+              random.nextFloat() * JEngine.OBJ_VMAX, random.nextFloat() * JEngine.OBJ_VMAX},
+              DT / subSteps);
+          scene.spawnObjectDynamic(new float[] {x, y}, radius, vel);
+        }
+      }
+      case PATTERN_STREAM -> {
+      }
+      case PATTERN_EMIT -> {
+        Emitter emitter = new Emitter(width / 2f, radius * 2f);
+        emitter.setWidth(Math.max(0f, width - radius * 4f));
+        emitter.setDirection((float) Math.PI / 2f, 0.5f);
+        emitter.setSpeed(0f, JEngine.OBJ_VMAX / 4f);
+        emitter.setRadius(radius, radius);
+        emitter.setRate(particles / EMIT_SECONDS);
+        emitter.setLimit(particles);
+        emitter.setSeed(random.nextLong());
+        scene.addEmitter(emitter);
+      }
+      default -> throw new IllegalArgumentException("invalid spawn pattern");
+    }
+  }
+
+  public void step() {
+    if (pattern == PATTERN_STREAM) {
+      for (int i = 0; i < STREAM_PER_STEP && scene.numObjects() < particles; i++) {
+        scene.spawnParticle(radius + 1f, radius + 1f + (i % 4) * radius * 2f, 295 * DT / subSteps,
+            121 * DT / subSteps, radius, Atom.MASS_DEFAULT, true, Particles.WHITE);
+      }
+    }
+    scene.emit(DT, subSteps);
+    world.step(scene.particles(), DT, subSteps);
+    particleSteps += scene.numObjects();
+    if (!world.hasBorder())
+      scene.clean(world);
+    if (metricsReport != null) {
+      try {
+        metricsReport.poll();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  /**
+   * Run some number of steps, timing each one.
+   *
+   * @return the wall-clock duration of every step in nanoseconds
+   */
+  public long[] run(int steps) {
+    long[] latencies = new long[steps];
+    for (int i = 0; i < steps; i++) {
+      long start = System.nanoTime();
+      step();
+      latencies[i] = System.nanoTime() - start;
+      if (frameRenderer != null && ++stepsRun % frameEvery == 0)
+        writeFrame();
+    }
+    return latencies;
+  }
+
+  private void writeFrame() {
+    long start = System.nanoTime();
+    frameRenderer.renderScene(scene);
+    long rendered = System.nanoTime();
+    Path file = frameDir.resolve(String.format("frame_%06d.%s", framesWritten,
+        rawFrames ? "rgba" : "png"));
+    try {
+      if (rawFrames)
+        frameBackend.writeRaw(file);
+      else
+        frameBackend.writePng(file);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    renderNanos += rendered - start;
+    writeNanos += System.nanoTime() - rendered;
+    framesWritten++;
+  }
+
+  public static void main(String[] args) throws IOException {
+    int particles = 10_000;
+    int steps = 1_000;
+    int warmup = 200;
+    int subSteps = 2;
+    int pattern = PATTERN_RANDOM;
+    int border = JEngine.BORDER_RECT;
+    float radius = 3f;
+    float width = 0;
+    float height = 0;
+    int threads = 1;
+    float sleep = 0f;
+    long seed = 42L;
+    int broadPhase = JEngine.BROADPHASE_DEFAULT;
+    boolean simd = true;
+    int reorder = 0;
+    Path metricsFile = null;
+    Path frameDir = null;
+    boolean rawFrames = false;
+    int frameEvery = 1;
+    for (int i = 0; i < args.length; i++) {
+      if (i + 1 >= args.length)
+        throw new IllegalArgumentException("missing value for " + args[i]);
+      String value = args[i + 1];
+      switch (args[i]) {
+        case "--particles" -> particles = Integer.parseInt(value);
+        case "--steps" -> steps = Integer.parseInt(value);
+        case "--warmup" -> warmup = Integer.parseInt(value);
+        case "--substeps" -> subSteps = Integer.parseInt(value);
+        case "--radius" -> radius = Float.parseFloat(value);
+        case "--threads" -> threads = Integer.parseInt(value);
+        case "--sleep" -> sleep = Float.parseFloat(value);
+        case "--seed" -> seed = Long.parseLong(value);
+        case "--reorder" -> reorder = Integer.parseInt(value);
+        case "--metrics" -> metricsFile = Path.of(value);
+        case "--frames" -> frameDir = Path.of(value);
+        case "--frame-every" -> frameEvery = Integer.parseInt(value);
+        case "--frame-format" -> rawFrames = switch (value) {
+          case "png" -> false;
+          case "raw" -> true;
+          default -> throw new IllegalArgumentException("unknown frame format: " + value);
+        };
+        case "--pattern" -> pattern = switch (value) {
+          case "grid" -> PATTERN_GRID;
+          case "random" -> PATTERN_RANDOM;
+          case "stream" -> PATTERN_STREAM;
+          case "emit" -> PATTERN_EMIT;
+          default -> throw new IllegalArgumentException("unknown pattern: " + value);
+        };
+        case "--border" -> border = switch (value) {
+          case "rect" -> JEngine.BORDER_RECT;
+          case "circle" -> JEngine.BORDER_CIRCLE;
+          case "none" -> JEngine.BORDER_NONE;
+          default -> throw new IllegalArgumentException("unknown border: " + value);
+        };
+        case "--broadphase" -> broadPhase = switch (value) {
+          case "auto" -> JEngine.BROADPHASE_AUTO;
+          case "uniform" -> JEngine.BROADPHASE_UNIFORM;
+          case "hierarchical" -> JEngine.BROADPHASE_HIERARCHICAL;
+          case "sap" -> JEngine.BROADPHASE_SAP;
+          default -> throw new IllegalArgumentException("unknown broadphase: " + value);
+        };
+        case "--simd" -> simd = switch (value) {
+          case "on" -> true;
+          case "off" -> false;
+          default -> throw new IllegalArgumentException("expected on or off: " + value);
+        };
+        case "--size" -> {
+          String[] parts = value.split("x");
+          width = Float.parseFloat(parts[0]);
+          height = Float.parseFloat(parts[1]);
+        }
+        default -> throw new IllegalArgumentException("unknown option: " + args[i]);
+      }
+      i++;
+    }
+    if (steps < 1)
+      throw new IllegalArgumentException("steps must be at least 1");
+    if (width <= 0 || height <= 0) {
+      // a square world at roughly a quarter packing density
+      width = height = (float) Math.ceil(Math.sqrt(particles * radius * radius * 4f * 4f));
+    }
+
+    HeadlessRunner runner = new HeadlessRunner(width, height, particles, pattern, radius, seed);
+    runner.setSubSteps(subSteps);
+    runner.world().setBorder(border);
+    runner.world().setParallelism(threads);
+    runner.world().setBroadPhase(broadPhase);
+    runner.world().setSimd(simd);
+    runner.world().setReorderInterval(reorder);
+    if (sleep > 0)
+      runner.world().setSleeping(sleep, 60);
+    runner.populate();
+    runner.run(warmup);
+    int stepped = runner.scene().numObjects();
+    // without a border, particles that fall out of the world are culled; a scene that has mostly
+    // emptied by the timed steps would only measure an idle world
+    if (stepped < particles / 2 && (pattern == PATTERN_GRID || pattern == PATTERN_RANDOM)) {
+      throw new IllegalArgumentException("only " + stepped + " of " + particles
+          + " particles are left after warm-up; use a border, or fewer warm-up steps");
+    }
+    if (frameDir != null) {
+      Files.createDirectories(frameDir);
+      runner.setFrameOutput(frameDir, rawFrames, frameEvery, threads);
+    }
+    CsvReporter report = null;
+    if (metricsFile != null) {
+      Metrics metrics = new Metrics();
+      report = new CsvReporter(metricsFile, metrics, 1.0);
+      runner.setMetricsReport(report, metrics);
+    }
+
+    ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+    com.sun.management.ThreadMXBean allocations = mx instanceof com.sun.management.ThreadMXBean m
+        ? m : null;
+    long allocatedBefore = allocations != null ? allocations.getCurrentThreadAllocatedBytes() : 0;
+    long particleStepsBefore = runner.particleSteps;
+    long start = System.nanoTime();
+    long[] latencies = runner.run(steps);
+    long elapsed = System.nanoTime() - start;
+    long allocated = allocations != null
+        ? allocations.getCurrentThreadAllocatedBytes() - allocatedBefore : -1;
+    if (report != null)
+      report.close();
+
+    int live = runner.scene().numObjects();
+    long particleSteps = runner.particleSteps - particleStepsBefore;
+    double seconds = elapsed / 1e9;
+    if (live < stepped) {
+      System.err.printf("warning: %d of %d particles left the world during the timed steps%n",
+          stepped - live, stepped);
+    }
+    Arrays.sort(latencies);
+    System.out.printf("particles=%d steps=%d substeps=%d threads=%d simd=%b world=%.0fx%.0f%n",
+        live, steps, subSteps, runner.world().parallelism(), runner.world().simd(), width, height);
+    System.out.printf("steps/sec: %.1f%n", steps / seconds);
+    System.out.printf("particle-steps/sec: %.3e%n", particleSteps / seconds);
+    System.out.printf("step latency ms: p50=%.3f p90=%.3f p99=%.3f max=%.3f%n",
+        percentile(latencies, 0.50), percentile(latencies, 0.90), percentile(latencies, 0.99),
+        latencies[latencies.length - 1] / 1e6);
+    if (allocated >= 0)
+      System.out.printf("allocated bytes/step (main thread): %.1f%n", (double) allocated / steps);
+    int frames = runner.framesWritten();
+    if (frames > 0) {
+      System.out.printf("frames=%d render ms/frame: %.3f write ms/frame: %.3f%n", frames,
+          runner.renderNanos / 1e6 / frames, runner.writeNanos / 1e6 / frames);
+    }
+  }
+
+  private static double percentile(long[] sorted, double p) {
+    int i = (int) Math.ceil(p * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(sorted.length - 1, i))] / 1e6;
+  }
+}
@@ -2,9 +2,21 @@ package jengine;
 
 import jengine.gfx.Renderer;
 import jengine.gfx.Window;
+import jengine.metrics.CsvReporter;
+import jengine.metrics.Metrics;
 import jengine.objects.Atom;
 import jengine.objects.StaticAtom;
 import jengine.physics.PhysicsWorld;
+import jengine.physics.Snapshot;
+import jengine.physics.SnapshotBuffer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 
 public class JEngine {
   public static final int SPAWN_MANUAL = 0;
@@ -22,6 +34,17 @@ public class JEngine {
   public static final int BORDER_NONE = 22;
   public static final int BORDER_DEFAULT = BORDER_RECT;
 
+  public static final int BROADPHASE_UNIFORM = 30;
+  public static final int BROADPHASE_HIERARCHICAL = 31;
+  public static final int BROADPHASE_AUTO = 32;
+  public static final int BROADPHASE_SAP = 33;
+  public static final int BROADPHASE_DEFAULT = BROADPHASE_AUTO;
+
+  public static final int POOL_GROW = 40;
+  public static final int POOL_REJECT = 41;
+  public static final int POOL_RECYCLE = 42;
+  public static final int POOL_DEFAULT = POOL_GROW;
+
   public static final int ACTION_CLEAR = 100;
   public static final int ACTION_PAUSE = 101;
 
@@ -29,22 +52,49 @@ public class JEngine {
   public static final int OBJ_LIMIT = 1000;
 
   private final int targetFPS = 120;
-  private final float dt = 1f / targetFPS;
+  // the fixed physics timestep, independent of the frame rate
+  private float dt = 1f / targetFPS;
+  private int maxCatchUpSteps = 5;
   private final PhysicsWorld world;
-  private final Renderer renderer;
   private final Scene scene;
-  private final Window window;
+  private final int width;
+  private final int height;
+  // created by run(), so that GLFW and OpenGL are only loaded once a window is needed
+  private Renderer renderer;
+  private Window window;
+  private int[] bgColour = Renderer.BLACK;
+  private Metrics metrics = null;
+  private CsvReporter metricsReport = null;
 
   private int spawnMode = SPAWN_DEFAULT;
   private int supSteps = 2;
-  private boolean paused = false;
+  private volatile boolean paused = false;
+  private volatile double fps = targetFPS;
+  private int frames = 0;
+  private double fpsSince = 0;
+  // owned by whichever thread steps physics
+  private double accumulator = 0;
+  private long steps = 0;
+
+  private boolean pipelined = false;
+  private volatile boolean physicsRunning = false;
+  private volatile Throwable physicsFailure = null;
+  // changes to the scene made by input while physics runs on its own thread
+  private final Queue<Runnable> sceneCommands = new ConcurrentLinkedQueue<>();
 
   public JEngine(int width, int height) {
+    this.width = width;
+    this.height = height;
     world = new PhysicsWorld(width, height);
-    renderer = new Renderer();
-    scene = new Scene();
-    window = new Window(width, height);
-    window.init();
+    scene = new Scene(OBJ_LIMIT, POOL_RECYCLE);
+  }
+
+  /**
+   * Set the most objects the scene holds and what happens to spawns beyond that, one of
+   * {@link #POOL_GROW}, {@link #POOL_REJECT} or {@link #POOL_RECYCLE}.
+   */
+  public void setObjectLimit(int limit, int policy) {
+    scene.setCapacity(limit, policy);
   }
 
   public void setSpawnMode(int mode) {
@@ -58,49 +108,297 @@ public class JEngine {
   public void setBorderMode(int mode) {
     world.setBorder(mode);
     if (mode == BORDER_CIRCLE) {
-      renderer.setBgColour(Renderer.GRAY);
-      StaticAtom circle = new StaticAtom(window.centre(), world.width() / 2.5f, 1);
+      setBgColour(Renderer.GRAY);
+      StaticAtom circle = new StaticAtom(world.centre(), world.width() / 2.5f, 1);
       circle.paint(Renderer.BLACK);
       scene.addBgObject(circle);
     } else {
-      renderer.setBgColour(Renderer.BLACK);
+      setBgColour(Renderer.BLACK);
       scene.clearBgObjects();
     }
   }
 
+  private void setBgColour(int[] rgb) {
+    bgColour = rgb;
+    if (renderer != null)
+      renderer.setBgColour(rgb);
+  }
+
+  public void setBroadPhaseMode(int mode) {
+    world.setBroadPhase(mode);
+  }
+
+  public void setSleeping(float threshold, int steps) {
+    world.setSleeping(threshold, steps);
+  }
+
+  public void setParallelism(int threads) {
+    world.setParallelism(threads);
+  }
+
+  /**
+   * Set how many fixed physics steps run per second of wall-clock time, independently of how
+   * often frames are drawn.
+   */
+  public void setPhysicsRate(int stepsPerSecond) {
+    if (stepsPerSecond < 1)
+      throw new IllegalArgumentException("physics rate must be at least 1");
+    dt = 1f / stepsPerSecond;
+  }
+
+  /**
+   * Set the most physics steps a single frame may run to catch up with the wall clock. Time
+   * beyond that is dropped, so a slow frame slows the simulation down briefly instead of making
+   * every following frame slower still.
+   */
+  public void setMaxCatchUpSteps(int steps) {
+    if (steps < 1)
+      throw new IllegalArgumentException("catch-up steps must be at least 1");
+    maxCatchUpSteps = steps;
+  }
+
+  /**
+   * Time every phase of the loop, physics and drawing alike, into some metrics.
+   *
+   * @param metrics the metrics to record into, or null to stop measuring
+   */
+  public void setMetrics(Metrics metrics) {
+    this.metrics = metrics;
+    world.setMetrics(metrics);
+  }
+
+  public Metrics metrics() {
+    return metrics;
+  }
+
+  /**
+   * Measure the loop and append a CSV row of the metrics to a file every so often, until the
+   * window closes.
+   */
+  public void setMetricsReport(Path file, double periodSeconds) throws IOException {
+    if (metrics == null)
+      setMetrics(new Metrics());
+    if (metricsReport != null)
+      metricsReport.close();
+    metricsReport = new CsvReporter(file, metrics, periodSeconds);
+  }
+
+  /**
+   * Choose between stepping physics on its own thread, pipelined with drawing, and stepping it
+   * on the drawing thread between frames, the default. Pipelined, the physics thread publishes a
+   * {@link Snapshot} of the particles after its steps and each frame draws the newest one, so a
+   * frame waiting for vsync does not hold up physics and slow steps do not hold up frames.
+   * Input reaches the scene through a queue that the physics thread drains before stepping.
+   *
+   * Metrics then have two writers: the physics thread records the physics phases and the
+   * drawing thread the render and swap phases. Metrics reports are written from the drawing
+   * thread, which leaves zeroing the physics phases to the physics thread, so a step that ends
+   * while a row is written lands in neither row.
+   */
+  public void setPipelined(boolean pipelined) {
+    this.pipelined = pipelined;
+  }
+
+  /**
+   * Add an emitter to the scene. While a pipelined engine runs, the emitter is added between
+   * steps, and should only be changed through {@link #changeEmitter}.
+   */
+  public void addEmitter(Emitter emitter) {
+    changeScene(() -> scene.addEmitter(emitter));
+  }
+
+  public void removeEmitter(Emitter emitter) {
+    changeScene(() -> scene.removeEmitter(emitter));
+  }
+
+  /**
+   * Change an emitter between physics steps, such as to move or aim it.
+   */
+  public void changeEmitter(Emitter emitter, Consumer<Emitter> change) {
+    changeScene(() -> change.accept(emitter));
+  }
+
   public void setHueCycle(double step) {
     scene.setObjHueStep((float) step);
   }
 
   public void run() {
-    int frames = 0;
-    double fps = targetFPS;
-    double previousTime = window.time();
+    openWindow();
+    fpsSince = window.time();
+    if (pipelined)
+      runPipelined();
+    else
+      runSerial();
+    window.terminate();
+    closeMetricsReport();
+  }
+
+  private void runSerial() {
+    double frameStart = window.time();
     while (!window.shouldClose()) {
       double currentTime = window.time();
-      frames++;
-      if (!paused && spawnMode == SPAWN_AUTO && frames % 2 == 0 && fps >= 60) {
-        Atom a = scene.spawnObjectDynamic(new float[] {5, 10}, Atom.RADIUS_SMALL,
-            scene.scaleVelocity(new float[] {295, 121}, dt));
-        a.paint(scene.getObjColour());
+      double frameTime = currentTime - frameStart;
+      frameStart = currentTime;
+      countFrame(currentTime);
+      pollEvents();
+      int caughtUp = advance(frameTime);
+      // the accumulator holds back part of a step, so draw that far between the last two states
+      float alpha = (float) (accumulator / dt);
+      long renderStart = System.nanoTime();
+      renderer.renderScene(scene, alpha);
+      long renderEnd = System.nanoTime();
+      window.setWindowTitle("FPS: " + (int) fps + " | Objects: " + scene.numObjects());
+      swap(caughtUp, renderEnd - renderStart);
+    }
+  }
+
+  private void runPipelined() {
+    SnapshotBuffer snapshots = new SnapshotBuffer();
+    Metrics measured = metrics;
+    if (measured != null)
+      measured.setConcurrentSteps(true);
+    physicsRunning = true;
+    Thread physics = new Thread(() -> runPhysics(snapshots), "jengine-physics");
+    physics.setDaemon(true);
+    physics.setUncaughtExceptionHandler((thread, e) -> physicsFailure = e);
+    physics.start();
+    long lastStep = 0;
+    while (!window.shouldClose() && physics.isAlive()) {
+      countFrame(window.time());
+      pollEvents();
+      Snapshot snapshot = snapshots.latest();
+      long renderStart = System.nanoTime();
+      renderer.renderSnapshot(scene, snapshot);
+      long renderEnd = System.nanoTime();
+      window.setWindowTitle("FPS: " + (int) fps + " | Objects: " + snapshot.size());
+      swap((int) (snapshot.step() - lastStep), renderEnd - renderStart);
+      lastStep = snapshot.step();
+    }
+    physicsRunning = false;
+    try {
+      physics.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (measured != null)
+      measured.setConcurrentSteps(false);
+    sceneCommands.clear();
+    if (physicsFailure != null)
+      throw new IllegalStateException("physics thread failed", physicsFailure);
+  }
+
+  /*
+   * The loop of the physics thread: step at the physics rate by its own clock, publish a
+   * snapshot whenever the scene has changed, and sleep until the next step is due.
+   */
+  private void runPhysics(SnapshotBuffer snapshots) {
+    long last = System.nanoTime();
+    boolean changed = true;
+    while (physicsRunning) {
+      for (Runnable command; (command = sceneCommands.poll()) != null; ) {
+        command.run();
+        changed = true;
       }
-      if (currentTime - previousTime >= 1.0f) {
-        fps = frames;
-        frames = 0;
-        previousTime = currentTime;
+      long now = System.nanoTime();
+      if (advance((now - last) / 1e9) > 0)
+        changed = true;
+      last = now;
+      if (changed) {
+        snapshots.back().capture(scene.particles(), steps);
+        snapshots.publish();
+        changed = false;
       }
-      updateScene(fps);
+      if (accumulator < dt)
+        LockSupport.parkNanos((long) ((dt - accumulator) * 1e9));
     }
-    window.terminate();
   }
 
-  private void updateScene(double fps) {
-    pollEvents();
+  /*
+   * Run the physics steps that have come due after some more wall-clock time, then recolour the
+   * scene.
+   *
+   * @return the number of steps run
+   */
+  private int advance(double elapsed) {
     if (!paused)
-      world.step(scene.objects(), dt, supSteps);
-    renderer.renderScene(scene);
-    window.setWindowTitle("FPS: " + (int) fps + " | Objects: " + scene.numObjects());
+      accumulator += elapsed;
+    int caughtUp = 0;
+    while (!paused && accumulator >= dt && caughtUp < maxCatchUpSteps) {
+      scene.emit(dt, supSteps);
+      if (spawnMode == SPAWN_AUTO && steps % 2 == 0 && fps >= 60) {
+        scene.spawnParticle(5, 10, 295 * dt / supSteps, 121 * dt / supSteps, Atom.RADIUS_SMALL,
+            Atom.MASS_DEFAULT, true, scene.nextColour());
+      }
+      world.step(scene.particles(), dt, supSteps);
+      if (!world.hasBorder())
+        scene.clean(world);
+      accumulator -= dt;
+      caughtUp++;
+      steps++;
+    }
+    if (caughtUp == maxCatchUpSteps)
+      accumulator = Math.min(accumulator, dt);
+    if (caughtUp > 0)
+      scene.updateColours(world, OBJ_VMAX * dt / supSteps);
+    return caughtUp;
+  }
+
+  private void countFrame(double time) {
+    frames++;
+    if (time - fpsSince >= 1.0f) {
+      fps = frames;
+      frames = 0;
+      fpsSince = time;
+    }
+  }
+
+  private void swap(int steps, long renderNanos) {
+    long swapStart = System.nanoTime();
     window.swapBuffers();
+    if (metrics != null)
+      metrics.endFrame(steps, renderNanos, System.nanoTime() - swapStart);
+    pollMetricsReport();
+  }
+
+  /*
+   * Change the scene from the drawing thread, at the next safe point.
+   */
+  private void changeScene(Runnable change) {
+    if (physicsRunning)
+      sceneCommands.add(change);
+    else
+      change.run();
+  }
+
+  private void pollMetricsReport() {
+    if (metricsReport == null)
+      return;
+    try {
+      metricsReport.poll();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void closeMetricsReport() {
+    if (metricsReport == null)
+      return;
+    try {
+      metricsReport.close();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    metricsReport = null;
+  }
+
+  private void openWindow() {
+    if (window != null)
+      return;
+    window = new Window(width, height);
+    window.init();
+    renderer = new Renderer();
+    renderer.setBgColour(bgColour);
+    renderer.setViewport(0, 0, width, height);
   }
 
   private void pollEvents() {
@@ -113,8 +411,11 @@ public class JEngine {
   private void pollMouseClick(float[] coords) {
     if (coords == null)
       return;
-    Atom a = scene.spawnObjectDynamic(coords, scene.getRandomRadius(), scene.getRandomVelocity(dt));
-    a.paint(scene.getObjColour());
+    changeScene(() -> {
+      float[] vel = scene.getRandomVelocity(dt / supSteps);
+      scene.spawnParticle(coords[0], coords[1], vel[0], vel[1], scene.getRandomRadius(),
+          Atom.MASS_DEFAULT, true, scene.nextColour());
+    });
   }
 
   private void pollKeyPress(int key) {
@@ -122,7 +423,7 @@ public class JEngine {
       return;
     switch (key) {
       case ACTION_CLEAR -> {
-        scene.clearScene();
+        changeScene(scene::clearScene);
       }
       case ACTION_PAUSE -> {
         paused = !paused;
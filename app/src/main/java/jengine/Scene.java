@@ -1,5 +1,6 @@
 package jengine;
 
+import jengine.physics.Particles;
 import jengine.physics.PhysicsWorld;
 import jengine.objects.SimObject;
 import jengine.objects.Atom;
@@ -7,17 +8,92 @@ import jengine.objects.DynamicAtom;
 import jengine.objects.StaticAtom;
 
 import java.awt.Color;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.ArrayList;
 
+/**
+ * The objects of a simulation. Every object is a particle in one pre-sized {@link Particles} pool;
+ * removed particles free their slot for the next spawn, and a capacity policy decides what a spawn
+ * does once the pool is full. Object views are only created when something asks for one, so the
+ * primitive {@link #spawnParticle} path allocates nothing per particle.
+ */
 public class Scene {
   private final List<SimObject> bgObjects = new ArrayList<>();
-  private final List<SimObject> objects = new ArrayList<>();
+  // views by handle slot, so they need no upkeep when the store moves particles around; an entry
+  // is stale once its handle no longer resolves
+  private SimObject[] views = new SimObject[64];
+  private final List<SimObject> objects = new AbstractList<>() {
+    @Override
+    public SimObject get(int i) {
+      return object(i);
+    }
+
+    @Override
+    public int size() {
+      return particles.size();
+    }
+  };
+  private final Particles particles;
+  private int capacity;
+  private int capacityPolicy;
+  // handles in spawn order from spawnHead, including some of particles removed since
+  private long[] spawnOrder = new long[64];
+  private long[] spareSpawnOrder = new long[64];
+  private int spawnHead = 0;
+  private int spawnCount = 0;
 
-  private int objectCount = 0;
   private float objectHue = 0f;
   private float objectHueStep = 0.02f;
   private int colourMode = JEngine.COLOUR_DEFAULT;
+  private final List<Emitter> emitters = new ArrayList<>();
+  // COLOUR_VEL colours from slow to fast, blue through green and yellow to red
+  private static final int[] SPEED_COLOURS = new int[256];
+
+  static {
+    for (int k = 0; k < SPEED_COLOURS.length; k++) {
+      float t = k / (float) (SPEED_COLOURS.length - 1);
+      SPEED_COLOURS[k] = Color.HSBtoRGB((1f - t) * 2f / 3f, 1, 1) & 0xFFFFFF;
+    }
+  }
+
+  public Scene() {
+    this(JEngine.OBJ_LIMIT, JEngine.POOL_DEFAULT);
+  }
+
+  /**
+   * Create a scene with its particle pool sized up front.
+   *
+   * @param capacity the number of particles to allocate for, and the limit for the reject and
+   *     recycle policies
+   * @param policy one of {@link JEngine#POOL_GROW}, {@link JEngine#POOL_REJECT} or
+   *     {@link JEngine#POOL_RECYCLE}
+   */
+  public Scene(int capacity, int policy) {
+    particles = new Particles(Math.max(0, capacity));
+    setCapacity(capacity, policy);
+  }
+
+  /**
+   * Set the capacity of the particle pool and what a spawn does once it is full: grow the pool,
+   * reject the spawn, or recycle the oldest live particle. Lowering the capacity does not remove
+   * particles that are already live.
+   */
+  public void setCapacity(int capacity, int policy) {
+    if (capacity < 1)
+      throw new IllegalArgumentException("capacity must be at least 1");
+    if (policy != JEngine.POOL_GROW && policy != JEngine.POOL_REJECT
+        && policy != JEngine.POOL_RECYCLE)
+      throw new IllegalArgumentException("invalid capacity policy");
+    this.capacity = capacity;
+    this.capacityPolicy = policy;
+    particles.ensureCapacity(capacity);
+  }
+
+  public int capacity() {
+    return capacity;
+  }
 
   public void addBgObject(SimObject o) {
     bgObjects.add(o);
@@ -27,28 +103,91 @@ public class Scene {
     return bgObjects;
   }
 
+  /**
+   * Get the objects of this scene as a list indexed like the particle store. Views are created as
+   * they are read, so prefer {@link #particles()} for passes over every object.
+   */
   public List<SimObject> objects() {
     return objects;
   }
 
-  public void clean(PhysicsWorld world) {
-    List<SimObject> toRemove = new ArrayList<>();
-    for (SimObject o : objects) {
-      if (!world.holds(o))
-        toRemove.add(o);
+  public Particles particles() {
+    return particles;
+  }
+
+  /**
+   * Get a view of the particle at some index, creating it on first use.
+   */
+  public SimObject object(int i) {
+    long handle = particles.handle(i);
+    int slot = (int) handle;
+    SimObject o = slot < views.length ? views[slot] : null;
+    if (o == null || o.handle() != handle) {
+      o = particles.isDynamic(i) ? new DynamicAtom(particles, i) : new StaticAtom(particles, i);
+      setView(slot, o);
     }
-    for (SimObject o : toRemove) {
-      removeObject(o);
+    return o;
+  }
+
+  /**
+   * Get a view of the particle some handle refers to.
+   *
+   * @return the view, or null if the particle has been removed
+   */
+  public SimObject object(long handle) {
+    int i = particles.indexOf(handle);
+    return i < 0 ? null : object(i);
+  }
+
+  /**
+   * Remove every object that has left the world in a single pass. Run between steps; with
+   * {@link JEngine#BORDER_NONE} this is what keeps escaped particles from piling up.
+   *
+   * @return the number of objects removed
+   */
+  public int clean(PhysicsWorld world) {
+    int removed = 0;
+    int i = 0;
+    while (i < particles.size()) {
+      if (world.holds(particles, i)) {
+        i++;
+      } else {
+        // the last particle moves into i, so test i again
+        particles.remove(i);
+        removed++;
+      }
     }
+    return removed;
   }
 
   public int numObjects() {
-    return objectCount;
+    return particles.size();
   }
 
   public boolean removeObject(SimObject o) {
-    objectCount--;
-    return objects.remove(o);
+    if (o.particles() != particles)
+      return false;
+    return removeObject(o.handle());
+  }
+
+  /**
+   * Remove an object. Sleeping particles that touched it are woken at the next step, since they
+   * may have been resting on it.
+   *
+   * @return whether the handle was live
+   */
+  public boolean removeObject(long handle) {
+    int i = particles.indexOf(handle);
+    if (i < 0)
+      return false;
+    particles.remove(i);
+    return true;
+  }
+
+  private void setView(int slot, SimObject o) {
+    if (slot >= views.length)
+      views = Arrays.copyOf(views, Math.max(slot + 1, views.length * 2));
+    views[slot] = o;
   }
 
   public void clearBgObjects() {
@@ -56,8 +195,23 @@ public class Scene {
   }
 
   public void clearScene() {
-    objectCount = 0;
-    objects.clear();
+    Arrays.fill(views, null);
+    particles.clear();
+    spawnHead = 0;
+    spawnCount = 0;
+  }
+
+  /**
+   * Forget the spawn order and treat the particles in the store as spawned in index order. Call
+   * after filling the store directly, as when restoring a checkpoint, so that the recycle policy
+   * has live particles to recycle.
+   */
+  public void resetSpawnOrder() {
+    spawnHead = 0;
+    spawnCount = 0;
+    for (int i = 0; i < particles.size(); i++) {
+      pushSpawn(particles.handle(i));
+    }
   }
 
   public void setColourMode(int mode) {
@@ -68,52 +222,207 @@ public class Scene {
     this.objectHueStep = step;
   }
 
+  /**
+   * Recolour every particle by its speed under {@link JEngine#COLOUR_VEL}, in one pass over the
+   * store; in other colour modes this does nothing. Run once per drawn frame.
+   *
+   * @param maxDisplacement the distance moved per substep that takes the fastest colour
+   */
+  public void updateColours(PhysicsWorld world, float maxDisplacement) {
+    if (colourMode == JEngine.COLOUR_VEL)
+      world.colourBySpeed(particles, SPEED_COLOURS, maxDisplacement);
+  }
+
   /* object spawning */
 
+  /**
+   * Spawn a particle without creating an object view for it.
+   *
+   * @param vx the x velocity, in world units per physics sub-step, as the world reads it from
+   *     positions; see {@link #scaleVelocity}
+   * @param vy the y velocity, in world units per physics sub-step
+   * @param rgb the packed 0xRRGGBB colour
+   * @return a handle to the particle, or {@link Particles#NO_HANDLE} if the pool is full and its
+   *     policy is {@link JEngine#POOL_REJECT}
+   */
+  public long spawnParticle(float x, float y, float vx, float vy, float radius, float mass,
+      boolean dynamic, int rgb) {
+    int i = spawn(x, y, vx, vy, radius, mass, dynamic, rgb);
+    return i < 0 ? Particles.NO_HANDLE : particles.handle(i);
+  }
+
+  /**
+   * @return the new object, or null if the pool is full and rejects spawns
+   */
   public StaticAtom spawnObjectStatic(float[] pos, float radius, float mass) {
-    StaticAtom atom = new StaticAtom(pos, radius, mass);
-    objects.add(atom);
-    objectCount++;
+    checkComponents(pos, "positional");
+    int i = spawn(pos[0], pos[1], 0f, 0f, radius, mass, false, Particles.WHITE);
+    if (i < 0)
+      return null;
+    StaticAtom atom = new StaticAtom(particles, i);
+    setView((int) particles.handle(i), atom);
     return atom;
   }
 
+  /**
+   * @return the new object, or null if the pool is full and rejects spawns
+   */
   public DynamicAtom spawnObjectDynamic(float[] pos, float radius, float mass, float[] vel) {
-    DynamicAtom atom = new DynamicAtom(pos, radius, mass, vel);
-    objects.add(atom);
-    objectCount++;
+    checkComponents(pos, "positional");
+    checkComponents(vel, "velocity");
+    int i = spawn(pos[0], pos[1], vel[0], vel[1], radius, mass, true, Particles.WHITE);
+    if (i < 0)
+      return null;
+    DynamicAtom atom = new DynamicAtom(particles, i);
+    setView((int) particles.handle(i), atom);
     return atom;
   }
 
+  public void addEmitter(Emitter emitter) {
+    emitters.add(emitter);
+  }
+
+  public boolean removeEmitter(Emitter emitter) {
+    return emitters.remove(emitter);
+  }
+
+  public List<Emitter> emitters() {
+    return emitters;
+  }
+
+  /**
+   * Run every emitter for one physics step, appending each one's particles to the store in a
+   * single bulk insert. Particles beyond the capacity are rejected or recycle the oldest ones, as
+   * the capacity policy says. Run before stepping; the broadphase picks the new particles up when
+   * the step rebuilds it.
+   *
+   * @param dt the length of the step in seconds
+   * @param subSteps the sub-steps the world splits the step into, which the particles' starting
+   *     velocities are per
+   * @return the number of particles spawned
+   */
+  public int emit(float dt, int subSteps) {
+    if (subSteps < 1)
+      throw new IllegalArgumentException("subSteps must be positive");
+    int spawned = 0;
+    for (Emitter emitter : emitters) {
+      int n = emitter.due(dt);
+      if (capacityPolicy == JEngine.POOL_REJECT) {
+        n = Math.min(n, capacity - particles.size());
+      } else if (capacityPolicy == JEngine.POOL_RECYCLE) {
+        n = Math.min(n, capacity);
+        for (int over = particles.size() + n - capacity; over > 0; over--) {
+          removeOldest();
+        }
+      }
+      if (n <= 0)
+        continue;
+      emitter.generate(n, dt, subSteps, this);
+      int first = particles.addAll(n, emitter.batchX, emitter.batchY, emitter.batchPrevX,
+          emitter.batchPrevY, emitter.batchRadius, emitter.batchColour, emitter.mass(), true);
+      for (int i = first; i < first + n; i++) {
+        pushSpawn(particles.handle(i));
+      }
+      spawned += n;
+    }
+    return spawned;
+  }
+
+  private int spawn(float x, float y, float vx, float vy, float radius, float mass,
+      boolean dynamic, int rgb) {
+    if (capacityPolicy != JEngine.POOL_GROW && particles.size() >= capacity) {
+      if (capacityPolicy == JEngine.POOL_REJECT)
+        return -1;
+      removeOldest();
+    }
+    int i = particles.add(x, y, x - vx, y - vy, radius, mass, dynamic);
+    particles.setColour(i, rgb);
+    pushSpawn(particles.handle(i));
+    return i;
+  }
+
+  private void removeOldest() {
+    while (spawnCount > 0) {
+      long handle = spawnOrder[spawnHead];
+      spawnHead = (spawnHead + 1) % spawnOrder.length;
+      spawnCount--;
+      if (removeObject(handle))
+        return;
+    }
+  }
+
+  private void pushSpawn(long handle) {
+    if (spawnCount == spawnOrder.length) {
+      // drop the handles of particles removed since, and only grow if most are still live
+      int length = spawnOrder.length;
+      long[] compacted = spareSpawnOrder;
+      int live = 0;
+      for (int k = 0; k < spawnCount; k++) {
+        long h = spawnOrder[(spawnHead + k) % length];
+        if (particles.isLive(h))
+          compacted[live++] = h;
+      }
+      spareSpawnOrder = spawnOrder;
+      spawnOrder = compacted;
+      spawnHead = 0;
+      spawnCount = live;
+      if (live > length / 2) {
+        spawnOrder = Arrays.copyOf(spawnOrder, length * 2);
+        spareSpawnOrder = new long[length * 2];
+      }
+    }
+    spawnOrder[(spawnHead + spawnCount) % spawnOrder.length] = handle;
+    spawnCount++;
+  }
+
   /* object spawn-values handling */
 
   public float getRandomRadius() {
     return Util.randomInt((int) Atom.RADIUS_SMALL, (int) Atom.RADIUS_LARGE);
   }
 
+  /**
+   * @param dt the length of a sub-step, as for {@link #scaleVelocity}
+   */
   public float[] getRandomVelocity(float dt) {
     return scaleVelocity(
         new float[] {Util.randomInt(0, JEngine.OBJ_VMAX), Util.randomInt(0, JEngine.OBJ_VMAX)}, dt);
   }
 
   public int[] getObjColour() {
-    int[] rgb = new int[] {255, 255, 255};
+    int rgb = nextColour();
+    return new int[] {(rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF};
+  }
+
+  /**
+   * Get the colour for the next spawned object under the current colour mode.
+   *
+   * @return a packed 0xRRGGBB colour
+   */
+  public int nextColour() {
     switch (colourMode) {
       case JEngine.COLOUR_RAINBOW -> {
         int bin = Color.HSBtoRGB(objectHue, 1, 1);
-        rgb[0] = (bin >> 16) & 0xFF;
-        rgb[1] = (bin >> 8) & 0xFF;
-        rgb[2] = bin & 0xFF;
         objectHue += objectHueStep % 1;
+        return bin & 0xFFFFFF;
       }
       case JEngine.COLOUR_RANDOM -> {
-        for (int i = 0; i < 3; i++) {
-          rgb[i] = Util.randomInt(0, 255);
-        }
+        return Util.randomInt(0, 255) << 16 | Util.randomInt(0, 255) << 8 | Util.randomInt(0, 255);
+      }
+      case JEngine.COLOUR_VEL -> {
+        // replaced by the speed colour at the next updateColours
+        return SPEED_COLOURS[0];
       }
     }
-    return rgb;
+    return Particles.WHITE;
   }
 
+  /**
+   * Turn a velocity in world units per second into the displacement over one physics sub-step
+   * that spawning takes, as emitters do.
+   *
+   * @param dt the length of a sub-step, the step divided by the sub-step count
+   */
   public float[] scaleVelocity(float[] vel, float dt) {
     float[] scaled = new float[2];
     for (int i = 0; i < 2; i++) {
@@ -151,9 +460,11 @@ public class Scene {
   }
 
   public DynamicAtom spawnObjectDynamic(float[] pos, float radius, float mass) {
-    DynamicAtom atom = new DynamicAtom(pos, radius, mass);
-    objects.add(atom);
-    objectCount++;
-    return atom;
+    return spawnObjectDynamic(pos, radius, mass, new float[] {0f, 0f});
+  }
+
+  private static void checkComponents(float[] v, String kind) {
+    if (v.length != 2)
+      throw new IllegalArgumentException("expected 2 " + kind + " components, got " + v.length);
   }
 }
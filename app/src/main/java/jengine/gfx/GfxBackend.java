@@ -1,37 +1,42 @@
 package jengine.gfx;
 
-import static org.lwjgl.opengl.GL11.*;
-
-class GfxBackend {
-
-  public void clear() {
-    glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
-  }
-
-  public void setClearColour(float[] colour) {
-    glClearColor(colour[0], colour[1], colour[2], 1);
-  }
-
-  public void drawCircle(float x, float y, float radius, float[] colour) {
-    int steps = 3;
-    float angle = (float) Math.PI * 2 / steps;
-    float prevX = x;
-    float prevY = y - radius;
-
-    glColor3f(colour[0], colour[1], colour[2]);
-
-    for (int i = 0; i <= steps; i++) {
-      float newX = x + (float) (radius * Math.sin(angle * i));
-      float newY = y + (float) (-radius * Math.cos(angle * i));
-
-      glBegin(GL_TRIANGLES);
-      glVertex2f(x, y);
-      glVertex2f(prevX, prevY);
-      glVertex2f(newX, newY);
-      glEnd();
-
-      prevX = newX;
-      prevY = newY;
-    }
+import java.nio.ByteBuffer;
+
+/**
+ * Something a {@link Renderer} can draw a frame onto, in world coordinates with y pointing down.
+ */
+public interface GfxBackend {
+  /**
+   * The size of one circle in the buffers given to {@link #drawCircles}: the centre x, y and
+   * radius as floats in native byte order, then the colour as four unsigned bytes in the order
+   * red, green, blue, alpha.
+   */
+  int INSTANCE_BYTES = 16;
+
+  /**
+   * Fill the frame with the clear colour.
+   */
+  void clear();
+
+  void setClearColour(float[] colour);
+
+  void drawCircle(float x, float y, float radius, float[] colour);
+
+  /**
+   * Draw a batch of circles, each over the ones before it.
+   *
+   * @param instances {@code count} circles of {@link #INSTANCE_BYTES} each from index 0
+   */
+  void drawCircles(ByteBuffer instances, int count);
+
+  /**
+   * Draw a batch of circles too small to tell apart from a point as single pixels, each over the
+   * ones before it. Backends without a cheaper way to draw points draw them as circles.
+   *
+   * @param instances {@code count} circles laid out as for {@link #drawCircles}; their radii are
+   *     ignored
+   */
+  default void drawPoints(ByteBuffer instances, int count) {
+    drawCircles(instances, count);
   }
 }
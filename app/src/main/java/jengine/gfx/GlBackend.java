@@ -0,0 +1,233 @@
+package jengine.gfx;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.lwjgl.opengl.GL;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.*;
+import static org.lwjgl.opengl.GL33.*;
+
+/**
+ * Draws through the OpenGL context of the current thread. Circles are drawn in batches: every
+ * circle of a frame is one instance in a single vertex buffer, uploaded once and drawn with one
+ * instanced call, and a fragment shader cuts each instance's quad down to a circle. Contexts
+ * older than OpenGL 3.3 fall back to drawing each circle in immediate mode.
+ *
+ * Mesa's llvmpipe rasteriser provides OpenGL 3.3 and later without a GPU, so the instanced path
+ * can be checked on any Linux machine by running with {@code LIBGL_ALWAYS_SOFTWARE=1}.
+ */
+class GlBackend implements GfxBackend {
+  private static final int MIN_SEGMENTS = 6;
+  private static final int MAX_SEGMENTS = 64;
+
+  private static final int ATTRIB_CORNER = 0;
+  private static final int ATTRIB_INSTANCE = 1;
+  private static final int ATTRIB_COLOUR = 2;
+
+  private static final String VERTEX_SHADER = """
+      #version 130
+      in vec2 corner;
+      in vec3 instance;
+      in vec4 colour;
+      out vec2 local;
+      out vec3 tint;
+      void main() {
+        local = corner;
+        tint = colour.rgb;
+        gl_Position = gl_ModelViewProjectionMatrix
+            * vec4(instance.xy + corner * instance.z, 0.0, 1.0);
+      }
+      """;
+
+  private static final String FRAGMENT_SHADER = """
+      #version 130
+      in vec2 local;
+      in vec3 tint;
+      out vec4 fragColour;
+      void main() {
+        if (dot(local, local) > 1.0)
+          discard;
+        fragColour = vec4(tint, 1.0);
+      }
+      """;
+
+  // created on the first batch, once a context is current; 0 until then
+  private int program = 0;
+  private int vertexArray = 0;
+  private int instanceBuffer = 0;
+  private long instanceBufferBytes = 0;
+  private boolean instancing = true;
+  private final float[] rgb = new float[3];
+
+  @Override
+  public void clear() {
+    glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
+  }
+
+  @Override
+  public void setClearColour(float[] colour) {
+    glClearColor(colour[0], colour[1], colour[2], 1);
+  }
+
+  @Override
+  public void drawCircle(float x, float y, float radius, float[] colour) {
+    int steps = segments(radius);
+    float angle = (float) Math.PI * 2 / steps;
+
+    glColor3f(colour[0], colour[1], colour[2]);
+
+    glBegin(GL_TRIANGLE_FAN);
+    glVertex2f(x, y);
+    for (int i = 0; i <= steps; i++) {
+      glVertex2f(x + (float) (radius * Math.sin(angle * i)),
+          y + (float) (-radius * Math.cos(angle * i)));
+    }
+    glEnd();
+  }
+
+  /*
+   * The fewest outline segments that keep every edge within half a pixel of the true circle.
+   */
+  private static int segments(float radius) {
+    if (radius <= 0.5f)
+      return MIN_SEGMENTS;
+    int n = (int) Math.ceil(Math.PI / Math.acos(1 - 0.5 / radius));
+    return Math.max(MIN_SEGMENTS, Math.min(MAX_SEGMENTS, n));
+  }
+
+  @Override
+  public void drawCircles(ByteBuffer instances, int count) {
+    if (count == 0)
+      return;
+    if (!instancing()) {
+      for (int k = 0; k < count; k++) {
+        int at = k * INSTANCE_BYTES;
+        int rgb = Instances.rgb(instances, k);
+        this.rgb[0] = ((rgb >> 16) & 0xFF) / 255f;
+        this.rgb[1] = ((rgb >> 8) & 0xFF) / 255f;
+        this.rgb[2] = (rgb & 0xFF) / 255f;
+        drawCircle(instances.getFloat(at), instances.getFloat(at + 4),
+            instances.getFloat(at + 8), this.rgb);
+      }
+      return;
+    }
+    upload(instances, count);
+    glUseProgram(program);
+    glBindVertexArray(vertexArray);
+    glDrawArraysInstanced(GL_TRIANGLE_STRIP, 0, 4, count);
+    glBindVertexArray(0);
+    glUseProgram(0);
+    glBindBuffer(GL_ARRAY_BUFFER, 0);
+  }
+
+  @Override
+  public void drawPoints(ByteBuffer instances, int count) {
+    if (count == 0)
+      return;
+    glPointSize(1f);
+    if (!instancing()) {
+      glBegin(GL_POINTS);
+      for (int k = 0; k < count; k++) {
+        int at = k * INSTANCE_BYTES;
+        int rgb = Instances.rgb(instances, k);
+        glColor3f(((rgb >> 16) & 0xFF) / 255f, ((rgb >> 8) & 0xFF) / 255f, (rgb & 0xFF) / 255f);
+        glVertex2f(instances.getFloat(at), instances.getFloat(at + 4));
+      }
+      glEnd();
+      return;
+    }
+    // the batch doubles as a fixed-function vertex array, so points take the same single upload
+    upload(instances, count);
+    glEnableClientState(GL_VERTEX_ARRAY);
+    glEnableClientState(GL_COLOR_ARRAY);
+    glVertexPointer(2, GL_FLOAT, INSTANCE_BYTES, 0);
+    glColorPointer(4, GL_UNSIGNED_BYTE, INSTANCE_BYTES, 12);
+    glDrawArrays(GL_POINTS, 0, count);
+    glDisableClientState(GL_COLOR_ARRAY);
+    glDisableClientState(GL_VERTEX_ARRAY);
+    glBindBuffer(GL_ARRAY_BUFFER, 0);
+  }
+
+  /*
+   * Copy a batch into the instance buffer and leave it bound.
+   */
+  private void upload(ByteBuffer instances, int count) {
+    if (program == 0)
+      createBatchState();
+    long bytes = (long) count * INSTANCE_BYTES;
+    glBindBuffer(GL_ARRAY_BUFFER, instanceBuffer);
+    // respecifying the store every upload orphans the last one, so the copy does not wait for an
+    // earlier draw to finish reading it
+    if (bytes > instanceBufferBytes)
+      instanceBufferBytes = Math.max(bytes, instanceBufferBytes * 2);
+    glBufferData(GL_ARRAY_BUFFER, instanceBufferBytes, GL_STREAM_DRAW);
+    glBufferSubData(GL_ARRAY_BUFFER, 0, instances.slice(0, (int) bytes));
+  }
+
+  /**
+   * Choose between batched instanced drawing and immediate mode. Instancing is used by default
+   * wherever the context supports it.
+   */
+  public void setInstancing(boolean instancing) {
+    this.instancing = instancing;
+  }
+
+  public boolean instancing() {
+    return instancing && GL.getCapabilities().OpenGL33;
+  }
+
+  private void createBatchState() {
+    int vertex = compile(GL_VERTEX_SHADER, VERTEX_SHADER);
+    int fragment = compile(GL_FRAGMENT_SHADER, FRAGMENT_SHADER);
+    program = glCreateProgram();
+    glAttachShader(program, vertex);
+    glAttachShader(program, fragment);
+    glBindAttribLocation(program, ATTRIB_CORNER, "corner");
+    glBindAttribLocation(program, ATTRIB_INSTANCE, "instance");
+    glBindAttribLocation(program, ATTRIB_COLOUR, "colour");
+    glBindFragDataLocation(program, 0, "fragColour");
+    glLinkProgram(program);
+    glDeleteShader(vertex);
+    glDeleteShader(fragment);
+    if (glGetProgrami(program, GL_LINK_STATUS) == GL_FALSE)
+      throw new IllegalStateException("circle shader failed to link: "
+          + glGetProgramInfoLog(program));
+
+    vertexArray = glGenVertexArrays();
+    glBindVertexArray(vertexArray);
+    // the unit quad every instance is scaled from, as a triangle strip
+    ByteBuffer corners = ByteBuffer.allocateDirect(8 * Float.BYTES).order(ByteOrder.nativeOrder());
+    corners.asFloatBuffer().put(new float[] {-1, -1, 1, -1, -1, 1, 1, 1});
+    int cornerBuffer = glGenBuffers();
+    glBindBuffer(GL_ARRAY_BUFFER, cornerBuffer);
+    glBufferData(GL_ARRAY_BUFFER, corners, GL_STATIC_DRAW);
+    glEnableVertexAttribArray(ATTRIB_CORNER);
+    glVertexAttribPointer(ATTRIB_CORNER, 2, GL_FLOAT, false, 0, 0);
+
+    instanceBuffer = glGenBuffers();
+    glBindBuffer(GL_ARRAY_BUFFER, instanceBuffer);
+    glEnableVertexAttribArray(ATTRIB_INSTANCE);
+    glVertexAttribPointer(ATTRIB_INSTANCE, 3, GL_FLOAT, false, INSTANCE_BYTES, 0);
+    glVertexAttribDivisor(ATTRIB_INSTANCE, 1);
+    glEnableVertexAttribArray(ATTRIB_COLOUR);
+    glVertexAttribPointer(ATTRIB_COLOUR, 4, GL_UNSIGNED_BYTE, true, INSTANCE_BYTES, 12);
+    glVertexAttribDivisor(ATTRIB_COLOUR, 1);
+    glBindVertexArray(0);
+    glBindBuffer(GL_ARRAY_BUFFER, 0);
+  }
+
+  private static int compile(int type, String source) {
+    int shader = glCreateShader(type);
+    glShaderSource(shader, source);
+    glCompileShader(shader);
+    if (glGetShaderi(shader, GL_COMPILE_STATUS) == GL_FALSE)
+      throw new IllegalStateException("circle shader failed to compile: "
+          + glGetShaderInfoLog(shader));
+    return shader;
+  }
+}
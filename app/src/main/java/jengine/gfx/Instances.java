@@ -0,0 +1,63 @@
+package jengine.gfx;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static jengine.gfx.GfxBackend.INSTANCE_BYTES;
+
+/**
+ * Reads and writes the circle batches handed to {@link GfxBackend#drawCircles}.
+ */
+final class Instances {
+  private static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+  private Instances() {}
+
+  /**
+   * Write one circle into a batch at some instance index.
+   *
+   * @param rgb the packed 0xRRGGBB colour
+   */
+  static void put(ByteBuffer instances, int k, float x, float y, float radius, int rgb) {
+    int at = k * INSTANCE_BYTES;
+    instances.putFloat(at, x);
+    instances.putFloat(at + 4, y);
+    instances.putFloat(at + 8, radius);
+    instances.putInt(at + 12, rgba(rgb));
+  }
+
+  /**
+   * Get the colour of a circle as a packed 0xRRGGBB int.
+   */
+  static int rgb(ByteBuffer instances, int k) {
+    return rgbOf(instances.getInt(k * INSTANCE_BYTES + 12));
+  }
+
+  /**
+   * The inverse of {@link #rgba}.
+   */
+  static int rgbOf(int rgba) {
+    return LITTLE_ENDIAN ? Integer.reverseBytes(rgba) >>> 8 : rgba >>> 8;
+  }
+
+  /**
+   * Get the int that lays out an opaque 0xRRGGBB colour as the bytes red, green, blue, alpha
+   * when stored in native byte order.
+   */
+  static int rgba(int rgb) {
+    int rgba = rgb << 8 | 0xFF;
+    return LITTLE_ENDIAN ? Integer.reverseBytes(rgba) : rgba;
+  }
+
+  /**
+   * Get a native-order buffer that holds at least some number of instances, reusing the given
+   * one if it is large enough.
+   */
+  static ByteBuffer ensure(ByteBuffer instances, int count) {
+    if (instances != null && instances.capacity() >= count * INSTANCE_BYTES)
+      return instances;
+    int capacity = Math.max(count, instances == null ? 1024
+        : instances.capacity() / INSTANCE_BYTES * 2);
+    return ByteBuffer.allocateDirect(capacity * INSTANCE_BYTES).order(ByteOrder.nativeOrder());
+  }
+}
@@ -3,32 +3,155 @@ package jengine.gfx;
 import jengine.Scene;
 import jengine.objects.SimObject;
 import jengine.objects.Atom;
+import jengine.physics.Particles;
+import jengine.physics.Snapshot;
+
+import java.nio.ByteBuffer;
 
 public class Renderer {
   public static final int[] WHITE = new int[] {255, 255, 255};
   public static final int[] GRAY = new int[] {180, 180, 180};
   public static final int[] BLACK = new int[] {0, 0, 0};
 
-  private final GfxBackend gfx = new GfxBackend();
+  private final GfxBackend gfx;
+  private final float[] rgb = new float[3];
+  // particles with a smaller radius are drawn as single pixels
+  private static final float POINT_RADIUS = 1f;
+
+  private ByteBuffer instances = null;
+  private ByteBuffer points = null;
+  private int count = 0;
+  private int pointCount = 0;
+  private float viewMinX = Float.NEGATIVE_INFINITY;
+  private float viewMinY = Float.NEGATIVE_INFINITY;
+  private float viewMaxX = Float.POSITIVE_INFINITY;
+  private float viewMaxY = Float.POSITIVE_INFINITY;
+
+  /**
+   * Create a renderer that draws through the OpenGL context current on the calling thread.
+   */
+  public Renderer() {
+    this(new GlBackend());
+  }
+
+  public Renderer(GfxBackend gfx) {
+    this.gfx = gfx;
+  }
+
+  public GfxBackend backend() {
+    return gfx;
+  }
+
+  /**
+   * Set the part of the world the backend shows, so that objects outside it are not drawn. One
+   * world unit is taken to be one pixel, as set up by {@link Window}. Nothing is culled until a
+   * viewport is set.
+   */
+  public void setViewport(float minX, float minY, float maxX, float maxY) {
+    if (!(maxX > minX && maxY > minY))
+      throw new IllegalArgumentException("viewport must have a positive area");
+    viewMinX = minX;
+    viewMinY = minY;
+    viewMaxX = maxX;
+    viewMaxY = maxY;
+  }
 
   public void renderScene(Scene scene) {
+    renderScene(scene, 1f);
+  }
+
+  /**
+   * Draw a scene part way through its last physics step, to interpolate between the two latest
+   * simulated states: a particle is drawn at {@code start + (position - start) * alpha}, where
+   * {@code start} is its position when the step began.
+   *
+   * Objects entirely outside the viewport are skipped, and objects less than a pixel across are
+   * drawn as points.
+   *
+   * @param alpha how far through the last step to draw, from 0 for its start to 1 for the latest
+   *     state
+   */
+  public void renderScene(Scene scene, float alpha) {
+    Particles p = scene.particles();
+    begin(scene, p.size());
+    // straight from the store, so drawing does not create a view per particle
+    for (int i = 0; i < p.size(); i++) {
+      float startX = p.stepStartX(i);
+      float startY = p.stepStartY(i);
+      float x = startX + (p.x(i) - startX) * alpha;
+      float y = startY + (p.y(i) - startY) * alpha;
+      add(x, y, p.radius(i), p.colour(i));
+    }
+    finish();
+  }
+
+  /**
+   * Draw the background objects of a scene and the particles of a snapshot of it, as taken while
+   * physics runs on another thread. Particles are culled and drawn as points as by
+   * {@link #renderScene(Scene, float)}, but not interpolated.
+   */
+  public void renderSnapshot(Scene scene, Snapshot snapshot) {
+    begin(scene, snapshot.size());
+    for (int i = 0; i < snapshot.size(); i++) {
+      add(snapshot.x(i), snapshot.y(i), snapshot.radius(i), snapshot.colour(i));
+    }
+    finish();
+  }
+
+  private void begin(Scene scene, int particles) {
     gfx.clear();
+    instances = Instances.ensure(instances, scene.bgObjects().size() + particles);
+    points = Instances.ensure(points, particles);
+    count = 0;
+    pointCount = 0;
     for (SimObject o : scene.bgObjects()) {
       if (o instanceof Atom a) {
-        drawCircle(a.position().components(), a.radius(), a.colour());
+        Instances.put(instances, count++, a.x(), a.y(), a.radius(),
+            a.particles().colour(a.index()));
       }
     }
-    for (SimObject o : scene.objects()) {
-      if (o instanceof Atom a)
-        drawCircle(a.position().components(), a.radius(), a.colour());
-    }
+  }
+
+  private void add(float x, float y, float r, int colour) {
+    if (x + r < viewMinX || x - r > viewMaxX || y + r < viewMinY || y - r > viewMaxY)
+      return;
+    if (r < POINT_RADIUS)
+      Instances.put(points, pointCount++, x, y, r, colour);
+    else
+      Instances.put(instances, count++, x, y, r, colour);
+  }
+
+  private void finish() {
+    gfx.drawCircles(instances, count);
+    gfx.drawPoints(points, pointCount);
+  }
+
+  /**
+   * Choose between drawing every circle of a frame in one instanced batch, the default where the
+   * context supports it, and drawing each circle in immediate mode. Only the OpenGL backend
+   * draws in immediate mode; other backends ignore this.
+   */
+  public void setInstancing(boolean instancing) {
+    if (gfx instanceof GlBackend gl)
+      gl.setInstancing(instancing);
   }
 
   public void drawCircle(float[] coordinates, float radius, int[] colour) {
-    float x = coordinates[0];
-    float y = coordinates[1];
-    float[] rgb = normaliseColour(colour);
-    gfx.drawCircle(x, y, radius, rgb);
+    drawCircle(coordinates[0], coordinates[1], radius, colour);
+  }
+
+  public void drawCircle(float x, float y, float radius, int[] colour) {
+    drawCircle(x, y, radius, colour[0] << 16 | colour[1] << 8 | colour[2]);
+  }
+
+  /**
+   * Draw a circle with a packed 0xRRGGBB colour.
+   */
+  public void drawCircle(float x, float y, float radius, int rgb) {
+    this.rgb[0] = ((rgb >> 16) & 0xFF) / 255f;
+    this.rgb[1] = ((rgb >> 8) & 0xFF) / 255f;
+    this.rgb[2] = (rgb & 0xFF) / 255f;
+    gfx.drawCircle(x, y, radius, this.rgb);
   }
 
   public float[] normaliseColour(int[] colour) {
@@ -0,0 +1,289 @@
+package jengine.gfx;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Rasterises circles on the CPU into an off-heap RGBA framebuffer, so frames can be produced
+ * without a GPU or display. Each batch is binned into square tiles, and tiles are filled
+ * independently of each other, on several threads if asked to; within a tile circles are drawn in
+ * batch order, so the result is the same at any parallelism.
+ *
+ * A pixel is covered by a circle when its centre is, which matches the OpenGL backend's circle
+ * shader.
+ */
+public class SoftwareBackend implements GfxBackend {
+  private static final int TILE_SIZE = 64;
+  // fewest tiles worth handing to a separate task
+  private static final int TILES_PER_TASK = 4;
+
+  private final int width;
+  private final int height;
+  private final int tilesX;
+  private final int tilesY;
+  private final ByteBuffer framebuffer;
+  private final IntBuffer pixels;
+  private int clearRgba = Instances.rgba(0);
+  // clearing is left to the tiles of the next batch, so that it runs in parallel too
+  private boolean clearPending = true;
+  private ForkJoinPool pool = null;
+
+  // circles of tile t are binned[tileStart[t]] .. binned[tileStart[t + 1] - 1], in batch order
+  private final int[] tileStart;
+  private final int[] tileCursor;
+  private int[] binned = new int[0];
+  private ByteBuffer batch;
+  private final ByteBuffer single = Instances.ensure(null, 1);
+
+  public SoftwareBackend(int width, int height) {
+    if (width < 1 || height < 1)
+      throw new IllegalArgumentException("framebuffer must be at least 1x1");
+    this.width = width;
+    this.height = height;
+    tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+    tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+    tileStart = new int[tilesX * tilesY + 1];
+    tileCursor = new int[tilesX * tilesY];
+    framebuffer = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.nativeOrder());
+    pixels = framebuffer.asIntBuffer();
+  }
+
+  public int width() {
+    return width;
+  }
+
+  public int height() {
+    return height;
+  }
+
+  /**
+   * Set how many threads fill tiles. 1, the default, rasterises on the calling thread.
+   */
+  public void setParallelism(int parallelism) {
+    if (parallelism < 1)
+      throw new IllegalArgumentException("parallelism must be at least 1");
+    if (pool != null)
+      pool.shutdown();
+    pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+  }
+
+  public int parallelism() {
+    return pool == null ? 1 : pool.getParallelism();
+  }
+
+  @Override
+  public void clear() {
+    clearPending = true;
+  }
+
+  @Override
+  public void setClearColour(float[] colour) {
+    int r = Math.round(colour[0] * 255f);
+    int g = Math.round(colour[1] * 255f);
+    int b = Math.round(colour[2] * 255f);
+    clearRgba = Instances.rgba(r << 16 | g << 8 | b);
+  }
+
+  @Override
+  public void drawCircle(float x, float y, float radius, float[] colour) {
+    int r = Math.round(colour[0] * 255f);
+    int g = Math.round(colour[1] * 255f);
+    int b = Math.round(colour[2] * 255f);
+    Instances.put(single, 0, x, y, radius, r << 16 | g << 8 | b);
+    drawCircles(single, 1);
+  }
+
+  @Override
+  public void drawCircles(ByteBuffer instances, int count) {
+    if (count == 0)
+      return;
+    bin(instances, count);
+    batch = instances;
+    int tiles = tilesX * tilesY;
+    if (pool == null || tiles <= TILES_PER_TASK)
+      fillTiles(0, tiles);
+    else
+      pool.invoke(new TileTask(0, tiles));
+    batch = null;
+    clearPending = false;
+  }
+
+  @Override
+  public void drawPoints(ByteBuffer instances, int count) {
+    if (count == 0)
+      return;
+    flushClear();
+    for (int k = 0; k < count; k++) {
+      int at = k * INSTANCE_BYTES;
+      float x = instances.getFloat(at);
+      float y = instances.getFloat(at + 4);
+      if (x >= 0 && x < width && y >= 0 && y < height)
+        pixels.put((int) y * width + (int) x, instances.getInt(at + 12));
+    }
+  }
+
+  /**
+   * Get the finished frame: {@code width * height} pixels, row by row from the top left, each as
+   * the bytes red, green, blue, alpha. The buffer is a read-only view that later frames overwrite.
+   */
+  public ByteBuffer framebuffer() {
+    flushClear();
+    return framebuffer.asReadOnlyBuffer().order(ByteOrder.nativeOrder()).clear();
+  }
+
+  /**
+   * Write the frame as an RGB PNG.
+   */
+  public void writePng(Path file) throws IOException {
+    flushClear();
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    int[] rgb = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    for (int i = 0; i < rgb.length; i++) {
+      rgb[i] = Instances.rgbOf(pixels.get(i));
+    }
+    if (!ImageIO.write(image, "png", file.toFile()))
+      throw new IOException("no PNG writer available");
+  }
+
+  /**
+   * Write the frame as raw RGBA bytes, as read by e.g. {@code ffmpeg -f rawvideo -pix_fmt rgba}.
+   */
+  public void writeRaw(WritableByteChannel out) throws IOException {
+    ByteBuffer frame = framebuffer();
+    while (frame.hasRemaining()) {
+      out.write(frame);
+    }
+  }
+
+  public void writeRaw(Path file) throws IOException {
+    try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      writeRaw(out);
+    }
+  }
+
+  private void flushClear() {
+    if (!clearPending)
+      return;
+    for (int i = 0; i < width * height; i++) {
+      pixels.put(i, clearRgba);
+    }
+    clearPending = false;
+  }
+
+  /*
+   * Sort the circles of a batch into the tiles their bounding boxes touch, with a counting sort
+   * that keeps batch order within each tile.
+   */
+  private void bin(ByteBuffer instances, int count) {
+    int tiles = tilesX * tilesY;
+    int[] start = tileStart;
+    Arrays.fill(start, 0);
+    for (int pass = 0; pass < 2; pass++) {
+      for (int k = 0; k < count; k++) {
+        int at = k * INSTANCE_BYTES;
+        float x = instances.getFloat(at);
+        float y = instances.getFloat(at + 4);
+        float r = instances.getFloat(at + 8);
+        int tx0 = Math.max(0, (int) Math.floor((x - r) / TILE_SIZE));
+        int tx1 = Math.min(tilesX - 1, (int) Math.floor((x + r) / TILE_SIZE));
+        int ty0 = Math.max(0, (int) Math.floor((y - r) / TILE_SIZE));
+        int ty1 = Math.min(tilesY - 1, (int) Math.floor((y + r) / TILE_SIZE));
+        for (int ty = ty0; ty <= ty1; ty++) {
+          for (int tx = tx0; tx <= tx1; tx++) {
+            int t = ty * tilesX + tx;
+            if (pass == 0)
+              start[t + 1]++;
+            else
+              binned[tileCursor[t]++] = k;
+          }
+        }
+      }
+      if (pass == 0) {
+        for (int t = 0; t < tiles; t++) {
+          start[t + 1] += start[t];
+        }
+        if (binned.length < start[tiles])
+          binned = new int[Math.max(start[tiles], binned.length * 2)];
+        System.arraycopy(start, 0, tileCursor, 0, tiles);
+      }
+    }
+  }
+
+  private void fillTiles(int from, int to) {
+    for (int t = from; t < to; t++) {
+      fillTile(t);
+    }
+  }
+
+  private void fillTile(int t) {
+    int x0 = (t % tilesX) * TILE_SIZE;
+    int y0 = (t / tilesX) * TILE_SIZE;
+    int x1 = Math.min(width, x0 + TILE_SIZE);
+    int y1 = Math.min(height, y0 + TILE_SIZE);
+    if (clearPending) {
+      for (int py = y0; py < y1; py++) {
+        for (int i = py * width + x0, end = py * width + x1; i < end; i++) {
+          pixels.put(i, clearRgba);
+        }
+      }
+    }
+    ByteBuffer instances = batch;
+    for (int b = tileStart[t]; b < tileStart[t + 1]; b++) {
+      int at = binned[b] * INSTANCE_BYTES;
+      float cx = instances.getFloat(at);
+      float cy = instances.getFloat(at + 4);
+      float r = instances.getFloat(at + 8);
+      int rgba = instances.getInt(at + 12);
+      float r2 = r * r;
+      // rows whose pixel centres py + 0.5 lie within the circle
+      int rowFrom = Math.max(y0, (int) Math.ceil(cy - r - 0.5f));
+      int rowTo = Math.min(y1 - 1, (int) Math.floor(cy + r - 0.5f));
+      for (int py = rowFrom; py <= rowTo; py++) {
+        float dy = py + 0.5f - cy;
+        float span2 = r2 - dy * dy;
+        if (span2 < 0)
+          continue;
+        float half = (float) Math.sqrt(span2);
+        int from = Math.max(x0, (int) Math.ceil(cx - half - 0.5f));
+        int to = Math.min(x1 - 1, (int) Math.floor(cx + half - 0.5f));
+        for (int i = py * width + from, end = py * width + to; i <= end; i++) {
+          pixels.put(i, rgba);
+        }
+      }
+    }
+  }
+
+  private class TileTask extends RecursiveAction {
+    private final int from;
+    private final int to;
+
+    TileTask(int from, int to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= TILES_PER_TASK) {
+        fillTiles(from, to);
+        return;
+      }
+      int mid = (from + to) >>> 1;
+      invokeAll(new TileTask(from, mid), new TileTask(mid, to));
+    }
+  }
+}
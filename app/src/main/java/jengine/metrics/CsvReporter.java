@@ -0,0 +1,66 @@
+package jengine.metrics;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Dumps a {@link Metrics} to a CSV file at a fixed period. Each row covers the interval since the
+ * previous one: the metrics are reset after every row, so percentiles are never diluted by the
+ * whole run. Call {@link #poll()} from the thread that records the metrics, such as once per step
+ * or frame, or from the one that records frames when steps are recorded concurrently.
+ */
+public class CsvReporter implements AutoCloseable {
+  private final BufferedWriter out;
+  private final Metrics metrics;
+  private final long periodNanos;
+  private final long startTime;
+  private long lastReport;
+
+  public CsvReporter(Path file, Metrics metrics, double periodSeconds) throws IOException {
+    if (!(periodSeconds > 0))
+      throw new IllegalArgumentException("report period must be positive");
+    this.out = Files.newBufferedWriter(file);
+    this.metrics = metrics;
+    this.periodNanos = (long) (periodSeconds * 1e9);
+    this.startTime = System.nanoTime();
+    this.lastReport = startTime;
+    out.write(Metrics.csvHeader());
+    out.newLine();
+  }
+
+  /**
+   * Write a row if a period has passed since the last one.
+   *
+   * @return whether a row was written
+   */
+  public boolean poll() throws IOException {
+    if (System.nanoTime() - lastReport < periodNanos)
+      return false;
+    report();
+    return true;
+  }
+
+  /**
+   * Write a row now and reset the metrics.
+   */
+  public void report() throws IOException {
+    long now = System.nanoTime();
+    out.write(metrics.csvRow((now - startTime) / 1e9));
+    out.newLine();
+    out.flush();
+    metrics.reset();
+    lastReport = now;
+  }
+
+  /**
+   * Write whatever was recorded since the last row, then close the file.
+   */
+  @Override
+  public void close() throws IOException {
+    if (metrics.steps() > 0 || metrics.frames() > 0)
+      report();
+    out.close();
+  }
+}
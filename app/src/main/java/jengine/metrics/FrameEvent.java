@@ -0,0 +1,32 @@
+package jengine.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * One drawn frame of a windowed engine, as a JFR event. Its duration runs from the end of one
+ * frame to the end of the next, so it includes the physics steps run in between.
+ */
+@Name("jengine.Frame")
+@Label("Frame")
+@Category("JEngine")
+@Description("A drawn frame and the physics steps run for it")
+@StackTrace(false)
+final class FrameEvent extends Event {
+  @Label("Steps")
+  int steps;
+
+  @Label("Render")
+  @Timespan
+  long render;
+
+  @Label("Swap")
+  @Description("Presenting the frame, including any wait for vsync")
+  @Timespan
+  long swap;
+}
@@ -0,0 +1,94 @@
+package jengine.metrics;
+
+import java.util.Arrays;
+
+/**
+ * A fixed-size histogram of non-negative values, such as latencies in nanoseconds. Buckets are
+ * log-linear: each power of two is split into eight buckets, so any percentile is accurate to
+ * within an eighth of its value, and recording is a few shifts and an increment with no
+ * allocation.
+ */
+public class Histogram {
+  private static final int SUB_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+  private final long[] counts = new long[64 << SUB_BITS];
+  private long count = 0;
+  private long sum = 0;
+  private long max = 0;
+
+  public void record(long value) {
+    if (value < 0)
+      value = 0;
+    counts[bucket(value)]++;
+    count++;
+    sum += value;
+    if (value > max)
+      max = value;
+  }
+
+  public long count() {
+    return count;
+  }
+
+  public long sum() {
+    return sum;
+  }
+
+  public long max() {
+    return max;
+  }
+
+  public double mean() {
+    return count == 0 ? 0 : (double) sum / count;
+  }
+
+  /**
+   * Get an upper bound of some percentile of the recorded values.
+   *
+   * @param p the percentile, from 0 to 1
+   * @return the largest value the bucket holding the percentile can hold, or 0 if nothing has
+   *     been recorded
+   */
+  public long percentile(double p) {
+    if (p < 0 || p > 1)
+      throw new IllegalArgumentException("percentile must be between 0 and 1");
+    if (count == 0)
+      return 0;
+    long rank = Math.max(1, (long) Math.ceil(p * count));
+    long seen = 0;
+    for (int b = 0; b < counts.length; b++) {
+      seen += counts[b];
+      if (seen >= rank)
+        return Math.min(max, lowest(b + 1) - 1);
+    }
+    return max;
+  }
+
+  public void reset() {
+    Arrays.fill(counts, 0);
+    count = 0;
+    sum = 0;
+    max = 0;
+  }
+
+  private static int bucket(long value) {
+    if (value < SUB_BUCKETS)
+      return (int) value;
+    int exp = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return (exp - SUB_BITS + 1) << SUB_BITS | sub;
+  }
+
+  /*
+   * The smallest value that lands in some bucket.
+   */
+  private static long lowest(int bucket) {
+    if (bucket < SUB_BUCKETS)
+      return bucket;
+    int exp = (bucket >> SUB_BITS) + SUB_BITS - 1;
+    if (exp > 62)
+      return Long.MAX_VALUE;
+    return 1L << exp | (long) (bucket & (SUB_BUCKETS - 1)) << (exp - SUB_BITS);
+  }
+}
@@ -0,0 +1,282 @@
+package jengine.metrics;
+
+import java.util.Arrays;
+
+import jdk.jfr.EventType;
+
+/**
+ * Timers, counters and latency histograms for the phases of the engine loop. A
+ * {@link jengine.physics.PhysicsWorld} given a Metrics times its own phases and counts candidate
+ * pairs and contacts; a {@link jengine.JEngine} adds render and swap. Everything recorded is
+ * also committed as {@code jengine.Step} and {@code jengine.Frame} JFR events while a flight
+ * recording is running.
+ *
+ * Each phase and counter has a single writer, so recording takes no locks. Values read from
+ * another thread may be a step behind. When steps are recorded on a different thread from frames
+ * and reports, see {@link #setConcurrentSteps}, a reset only zeroes the step's values when that
+ * thread next begins a step.
+ */
+public class Metrics {
+  public static final int PHASE_STEP = 0;
+  public static final int PHASE_REORDER = 1;
+  // gravity and integration run as one pass, fused with the border of the previous substep
+  public static final int PHASE_INTEGRATE = 2;
+  public static final int PHASE_BROADPHASE = 3;
+  // pair enumeration and collision resolution interleave, one callback per candidate pair
+  public static final int PHASE_COLLIDE = 4;
+  public static final int PHASE_CONSTRAIN = 5;
+  public static final int PHASE_RENDER = 6;
+  public static final int PHASE_SWAP = 7;
+  public static final int PHASES = 8;
+
+  public static final int COUNTER_PAIRS = 0;
+  public static final int COUNTER_CONTACTS = 1;
+  public static final int COUNTERS = 2;
+
+  public static final int GAUGE_PARTICLES = 0;
+  public static final int GAUGE_OCCUPIED_CELLS = 1;
+  public static final int GAUGES = 2;
+
+  private static final String[] PHASE_NAMES = {
+      "step", "reorder", "integrate", "broadphase", "collide", "constrain", "render", "swap"};
+  private static final String[] COUNTER_NAMES = {"pairs", "contacts"};
+  private static final String[] GAUGE_NAMES = {"particles", "occupied_cells"};
+
+  private final long[] nanos = new long[PHASES];
+  private final Histogram[] histograms = new Histogram[PHASES];
+  private final long[] counters = new long[COUNTERS];
+  private final long[] gauges = new long[GAUGES];
+  private long steps = 0;
+  private long frames = 0;
+  private boolean concurrentSteps = false;
+  // set by a reset from the reporting thread, honoured by the stepping thread
+  private volatile boolean stepResetRequested = false;
+  // what the open step and frame have recorded so far, for their JFR events
+  private final long[] stepNanos = new long[PHASES];
+  private final long[] stepCounters = new long[COUNTERS];
+  // events are only created while a recording has them enabled, so that metrics on their own
+  // leave stepping allocation-free
+  private static final EventType STEP_EVENTS = EventType.getEventType(StepEvent.class);
+  private static final EventType FRAME_EVENTS = EventType.getEventType(FrameEvent.class);
+  private StepEvent stepEvent;
+  private FrameEvent frameEvent;
+
+  public Metrics() {
+    for (int p = 0; p < PHASES; p++) {
+      histograms[p] = new Histogram();
+    }
+    frameEvent = beginFrameEvent();
+  }
+
+  /**
+   * Add one timed run of a phase.
+   */
+  public void record(int phase, long nanos) {
+    this.nanos[phase] += nanos;
+    histograms[phase].record(nanos);
+    stepNanos[phase] += nanos;
+  }
+
+  public void count(int counter, long amount) {
+    counters[counter] += amount;
+    stepCounters[counter] += amount;
+  }
+
+  public void gauge(int gauge, long value) {
+    gauges[gauge] = value;
+  }
+
+  /**
+   * Open a physics step. The time until {@link #endStep()} is recorded as {@link #PHASE_STEP}.
+   *
+   * @return the start time to hand to {@link #endStep(long)}
+   */
+  public long beginStep() {
+    if (stepResetRequested) {
+      stepResetRequested = false;
+      resetSteps();
+    }
+    Arrays.fill(stepNanos, 0);
+    Arrays.fill(stepCounters, 0);
+    stepEvent = null;
+    if (STEP_EVENTS.isEnabled()) {
+      stepEvent = new StepEvent();
+      stepEvent.begin();
+    }
+    return System.nanoTime();
+  }
+
+  public void endStep(long start) {
+    record(PHASE_STEP, System.nanoTime() - start);
+    steps++;
+    StepEvent event = stepEvent;
+    stepEvent = null;
+    if (event != null && event.shouldCommit()) {
+      event.particles = (int) gauges[GAUGE_PARTICLES];
+      event.reorder = stepNanos[PHASE_REORDER];
+      event.integrate = stepNanos[PHASE_INTEGRATE];
+      event.broadPhase = stepNanos[PHASE_BROADPHASE];
+      event.collide = stepNanos[PHASE_COLLIDE];
+      event.constrain = stepNanos[PHASE_CONSTRAIN];
+      event.pairs = stepCounters[COUNTER_PAIRS];
+      event.contacts = stepCounters[COUNTER_CONTACTS];
+      event.occupiedCells = (int) gauges[GAUGE_OCCUPIED_CELLS];
+      event.commit();
+    }
+  }
+
+  /**
+   * Close the current frame, after the given render and swap times, and open the next.
+   *
+   * @param steps the physics steps run for the frame
+   */
+  public void endFrame(int steps, long renderNanos, long swapNanos) {
+    record(PHASE_RENDER, renderNanos);
+    record(PHASE_SWAP, swapNanos);
+    frames++;
+    FrameEvent event = frameEvent;
+    if (event != null && event.shouldCommit()) {
+      event.steps = steps;
+      event.render = renderNanos;
+      event.swap = swapNanos;
+      event.commit();
+    }
+    frameEvent = beginFrameEvent();
+  }
+
+  private static FrameEvent beginFrameEvent() {
+    if (!FRAME_EVENTS.isEnabled())
+      return null;
+    FrameEvent event = new FrameEvent();
+    event.begin();
+    return event;
+  }
+
+  /* pull API */
+
+  /**
+   * @return the total time spent in a phase, in nanoseconds
+   */
+  public long nanos(int phase) {
+    return nanos[phase];
+  }
+
+  /**
+   * @return the latencies of single runs of a phase; substep phases run once per substep
+   */
+  public Histogram histogram(int phase) {
+    return histograms[phase];
+  }
+
+  public long counter(int counter) {
+    return counters[counter];
+  }
+
+  public long gauge(int gauge) {
+    return gauges[gauge];
+  }
+
+  public long steps() {
+    return steps;
+  }
+
+  public long frames() {
+    return frames;
+  }
+
+  public static String phaseName(int phase) {
+    return PHASE_NAMES[phase];
+  }
+
+  /**
+   * Say whether steps are recorded on another thread than frames, as with physics pipelined with
+   * drawing. Frames and resets must then come from one thread and steps from the other. Stepping
+   * on the frame thread again applies any reset still waiting for a step.
+   */
+  public void setConcurrentSteps(boolean concurrent) {
+    concurrentSteps = concurrent;
+    if (!concurrent && stepResetRequested) {
+      stepResetRequested = false;
+      resetSteps();
+    }
+  }
+
+  /**
+   * Zero every timer, histogram and counter. Gauges keep their last value. With concurrent steps,
+   * the render and swap phases are zeroed now and the rest by the stepping thread before its next
+   * step, so a step ending while a report is written is counted in neither report.
+   */
+  public void reset() {
+    for (int p = 0; p < PHASES; p++) {
+      if (!isStepPhase(p)) {
+        nanos[p] = 0;
+        histograms[p].reset();
+      }
+    }
+    frames = 0;
+    if (concurrentSteps)
+      stepResetRequested = true;
+    else
+      resetSteps();
+  }
+
+  private void resetSteps() {
+    for (int p = 0; p < PHASES; p++) {
+      if (isStepPhase(p)) {
+        nanos[p] = 0;
+        histograms[p].reset();
+      }
+    }
+    Arrays.fill(counters, 0);
+    steps = 0;
+  }
+
+  private static boolean isStepPhase(int phase) {
+    return phase != PHASE_RENDER && phase != PHASE_SWAP;
+  }
+
+  /* CSV export */
+
+  static String csvHeader() {
+    StringBuilder header = new StringBuilder("time_s,steps,frames");
+    for (String phase : PHASE_NAMES) {
+      header.append(',').append(phase).append("_calls,").append(phase).append("_ms,")
+          .append(phase).append("_p50_us,").append(phase).append("_p99_us,")
+          .append(phase).append("_max_us");
+    }
+    for (String counter : COUNTER_NAMES) {
+      header.append(',').append(counter);
+    }
+    for (String gauge : GAUGE_NAMES) {
+      header.append(',').append(gauge);
+    }
+    return header.toString();
+  }
+
+  String csvRow(double seconds) {
+    // a reset the stepping thread has not applied yet means no step has run since the last row
+    boolean stepsStale = stepResetRequested;
+    StringBuilder row = new StringBuilder();
+    row.append(String.format("%.3f", seconds)).append(',').append(stepsStale ? 0 : steps)
+        .append(',').append(frames);
+    for (int p = 0; p < PHASES; p++) {
+      if (stepsStale && isStepPhase(p)) {
+        row.append(",0,0.000,0.0,0.0,0.0");
+        continue;
+      }
+      Histogram h = histograms[p];
+      row.append(',').append(h.count())
+          .append(',').append(String.format("%.3f", nanos[p] / 1e6))
+          .append(',').append(String.format("%.1f", h.percentile(0.5) / 1e3))
+          .append(',').append(String.format("%.1f", h.percentile(0.99) / 1e3))
+          .append(',').append(String.format("%.1f", h.max() / 1e3));
+    }
+    for (long counter : counters) {
+      row.append(',').append(stepsStale ? 0 : counter);
+    }
+    for (long gauge : gauges) {
+      row.append(',').append(gauge);
+    }
+    return row.toString();
+  }
+}
@@ -0,0 +1,55 @@
+package jengine.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * One physics step, as a JFR event. The event's own duration is the whole step; the fields split
+ * it into phases summed over every substep.
+ */
+@Name("jengine.Step")
+@Label("Physics Step")
+@Category("JEngine")
+@Description("A PhysicsWorld step split into its phases")
+@StackTrace(false)
+final class StepEvent extends Event {
+  @Label("Particles")
+  int particles;
+
+  @Label("Reorder")
+  @Timespan
+  long reorder;
+
+  @Label("Integrate")
+  @Description("Gravity and Verlet integration, with the border of the previous substep")
+  @Timespan
+  long integrate;
+
+  @Label("Broadphase")
+  @Timespan
+  long broadPhase;
+
+  @Label("Collide")
+  @Description("Walking candidate pairs and resolving contacts")
+  @Timespan
+  long collide;
+
+  @Label("Constrain")
+  @Timespan
+  long constrain;
+
+  @Label("Candidate Pairs")
+  long pairs;
+
+  @Label("Contacts")
+  long contacts;
+
+  @Label("Occupied Cells")
+  @Description("Non-empty broadphase cells after the last rebuild, or -1 without cells")
+  int occupiedCells;
+}
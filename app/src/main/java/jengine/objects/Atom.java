@@ -1,5 +1,7 @@
 package jengine.objects;
 
+import jengine.physics.Particles;
+
 public abstract class Atom extends SimObject {
   public static final float RADIUS_MAX = 100f;
   public static final float RADIUS_MIN = 2f;
@@ -8,55 +10,56 @@ public abstract class Atom extends SimObject {
   public static final float RADIUS_SMALL = 5f;
   public static final float MASS_DEFAULT = 1f;
 
-  protected float mass;
-  protected float radius;
-
   public Atom(float[] position, float radius, float mass) {
     super(position);
-    this.radius = radius;
-    this.mass = mass;
+    particles.setRadius(index(), radius);
+    particles.setMass(index(), mass);
+  }
+
+  public Atom(Particles particles, int index) {
+    super(particles, index);
   }
 
   @Override
   public float minX() {
-    return position.x - radius;
+    return x() - radius();
   }
 
   @Override
   public float minY() {
-    return position.y - radius;
+    return y() - radius();
   }
 
   @Override
   public float maxX() {
-    return position.x + radius;
+    return x() + radius();
   }
 
   @Override
   public float maxY() {
-    return position.y + radius;
+    return y() + radius();
   }
 
   public float mass() {
-    return mass;
+    return particles.mass(index());
   }
 
   public float radius() {
-    return radius;
+    return particles.radius(index());
   }
 
   @Override
   public float width() {
-    return radius * 2;
+    return radius() * 2;
   }
 
   @Override
   public float height() {
-    return radius * 2;
+    return radius() * 2;
   }
 
   @Override
   public float boundary() {
-    return radius;
+    return radius();
   }
 }
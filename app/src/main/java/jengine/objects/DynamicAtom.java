@@ -1,14 +1,13 @@
 package jengine.objects;
 
+import jengine.physics.Particles;
 import jengine.physics.Vector;
 
 public class DynamicAtom extends Atom {
-  private Vector previousPosition;
-  private Vector acceleration = new Vector();
 
   public DynamicAtom(float[] position, float radius, float mass) {
     super(position, radius, mass);
-    previousPosition = this.position.clone();
+    particles.setDynamic(index(), true);
   }
 
   public DynamicAtom(float[] position, float radius, float mass, float[] velocity) {
@@ -16,28 +15,40 @@ public class DynamicAtom extends Atom {
     if (velocity.length != 2) {
       throw new IllegalArgumentException("expected 2 velocity components, got " + velocity.length);
     }
-    previousPosition = Vector.sub(this.position, new Vector(velocity));
+    particles.setDynamic(index(), true);
+    particles.setPreviousPosition(index(), x() - velocity[0], y() - velocity[1]);
+  }
+
+  public DynamicAtom(Particles particles, int index) {
+    super(particles, index);
   }
 
   public Vector previousPosition() {
-    return previousPosition;
+    return new Vector(particles.prevX(index()), particles.prevY(index()));
   }
 
   public Vector acceleration() {
-    return acceleration;
+    return new Vector(particles.accelerationX(index()), particles.accelerationY(index()));
   }
 
   public Vector velocity() {
-    return Vector.sub(position, previousPosition);
+    return new Vector(x() - particles.prevX(index()), y() - particles.prevY(index()));
+  }
+
+  public void setPreviousPosition(float x, float y) {
+    particles.setPreviousPosition(index(), x, y);
   }
 
   public void accelerate(float[] components) {
-    acceleration.set(components);
+    if (components.length != 2) {
+      throw new IllegalArgumentException("expected 2 components, got " + components.length);
+    }
+    particles.setAcceleration(index(), components[0], components[1]);
   }
 
   public void accelerate(Vector v) {
     if (v != null) {
-      acceleration.set(v);
+      particles.setAcceleration(index(), v.x, v.y);
     }
   }
 }
@@ -1,13 +1,20 @@
 package jengine.objects;
 
+import jengine.physics.Particles;
 import jengine.physics.Vector;
-import jengine.gfx.Renderer;
 
+/**
+ * A thin view over one particle in a {@link Particles} store. Objects created directly through a
+ * constructor own a private single-slot store; objects spawned through a Scene share the scene's
+ * store. The view holds a generational handle rather than an index, so it keeps pointing at the
+ * same particle while the store swaps other particles around, and fails loudly once its particle
+ * has been removed.
+ */
 public abstract class SimObject {
-  protected Vector position;
+  protected final Particles particles;
+  protected final long handle;
   protected float width;
   protected float height;
-  protected int[] colour = Renderer.WHITE;
 
   public abstract float minX();
 
@@ -22,15 +29,78 @@ public abstract class SimObject {
       throw new IllegalArgumentException(
           "expected 2 positional components, got " + position.length);
     }
-    this.position = new Vector(position);
+    this.particles = new Particles(1);
+    int index = particles.add(position[0], position[1], position[0], position[1], 0f, 0f, false);
+    this.handle = particles.handle(index);
   }
 
+  public SimObject(Particles particles, int index) {
+    if (index < 0 || index >= particles.size()) {
+      throw new IndexOutOfBoundsException("no particle at index " + index);
+    }
+    this.particles = particles;
+    this.handle = particles.handle(index);
+  }
+
+  public Particles particles() {
+    return particles;
+  }
+
+  public long handle() {
+    return handle;
+  }
+
+  /**
+   * Whether the particle behind this view is still in its store.
+   */
+  public boolean isLive() {
+    return particles.isLive(handle);
+  }
+
+  /**
+   * Get the current index of this object's particle. Indices change as other particles are
+   * removed, so resolve them again rather than keeping them across removals.
+   *
+   * @return the index of the particle in its store
+   */
+  public int index() {
+    int index = particles.indexOf(handle);
+    if (index < 0)
+      throw new IllegalStateException("object has been removed from its store");
+    return index;
+  }
+
+  public float x() {
+    return particles.x(index());
+  }
+
+  public float y() {
+    return particles.y(index());
+  }
+
+  /**
+   * Get the position of this object. The returned Vector is a copy; use
+   * {@link #setPosition(float, float)} to move the object.
+   *
+   * @return a new Vector holding the current position
+   */
   public Vector position() {
-    return position;
+    return new Vector(x(), y());
+  }
+
+  public void setPosition(float x, float y) {
+    particles.setPosition(index(), x, y);
   }
 
+  /**
+   * Get the colour of this object. The returned array is a copy of the packed colour held in the
+   * store; use {@link #paint(int[])} to change it.
+   *
+   * @return a new array holding the red, green and blue values
+   */
   public int[] colour() {
-    return colour;
+    int rgb = particles.colour(index());
+    return new int[] {(rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF};
   }
 
   public float width() {
@@ -49,21 +119,15 @@ public abstract class SimObject {
     if (rgb.length != 3) {
       throw new IllegalArgumentException("expected 3 values in RGB, got " + rgb.length);
     }
-    for (int value : rgb) {
-      value = value % 256;
-    }
-    this.colour = rgb;
+    particles.setColour(index(), (rgb[0] & 0xFF) << 16 | (rgb[1] & 0xFF) << 8 | rgb[2] & 0xFF);
   }
 
   public float distanceTo(SimObject x) {
     if (x == null) {
       return 0f;
     }
-    Vector p1 = this.position();
-    Vector p2 = x.position();
-    float xDiff = p2.x - p1.x;
-    float yDiff = p2.y = p1.y;
-    double distance = Math.sqrt(Math.pow(xDiff, 2) + Math.pow(yDiff, 2));
-    return (float) distance;
+    float xDiff = x.x() - this.x();
+    float yDiff = x.y() - this.y();
+    return (float) Math.sqrt(xDiff * xDiff + yDiff * yDiff);
   }
 }
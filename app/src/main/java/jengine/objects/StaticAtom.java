@@ -1,9 +1,15 @@
 package jengine.objects;
 
+import jengine.physics.Particles;
+
 public class StaticAtom extends Atom {
 
   public StaticAtom(float[] position, float radius, float mass) {
     super(position, radius, mass);
   }
 
+  public StaticAtom(Particles particles, int index) {
+    super(particles, index);
+  }
+
 }
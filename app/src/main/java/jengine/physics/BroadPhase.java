@@ -0,0 +1,47 @@
+package jengine.physics;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Finds candidate pairs of particles that may be touching. A broadphase is rebuilt from the
+ * particle store before each collision solve and then reports every pair that could overlap at
+ * least once; it may report pairs that turn out not to touch, since the narrow phase checks them.
+ */
+public interface BroadPhase {
+  /**
+   * Tell the broadphase the extent of the world. Particles may still stray outside it.
+   */
+  void setBounds(float minX, float minY, float maxX, float maxY);
+
+  /**
+   * Forget the extent of the world, for worlds without a border.
+   */
+  void clearBounds();
+
+  /**
+   * Bring the broadphase up to date with the current particle positions.
+   */
+  void rebuild(Particles particles);
+
+  /**
+   * Visit every candidate pair found by the last rebuild.
+   */
+  void forEach(PairConsumer consumer);
+
+  /**
+   * Visit every candidate pair using the threads of some pool. Implementations that walk pairs
+   * concurrently must never hand two concurrent calls the same particle index.
+   */
+  default void forEachParallel(PairConsumer consumer, ForkJoinPool pool) {
+    forEach(consumer);
+  }
+
+  /**
+   * Count the non-empty cells left by the last rebuild, for metrics. This may walk every cell.
+   *
+   * @return the number of occupied cells, or -1 for broadphases without cells
+   */
+  default int occupiedCells() {
+    return -1;
+  }
+}
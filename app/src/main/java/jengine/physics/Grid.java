@@ -1,63 +1,575 @@
 package jengine.physics;
 
-import jengine.objects.SimObject;
-
-import java.util.List;
-import java.util.function.BiConsumer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import it.unimi.dsi.fastutil.ints.IntArrayList;
-import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+
+/**
+ * Uniform grid broadphase. Each object is stored in the single cell holding its centre, and the
+ * cell size tracks the biggest object diameter, so any two overlapping objects sit in the same or
+ * adjacent cells. Pairs are enumerated once each by visiting every cell against itself and a
+ * half-neighbourhood stencil (east, south-west, south, south-east).
+ *
+ * With bounds set the grid is dense: every cell of the world rectangle is a slot in two flat
+ * arrays built by a counting sort, and objects outside the bounds are clamped into the edge
+ * cells. Without bounds cells live in a hash map keyed by cell coordinate.
+ *
+ * A dense grid can be maintained incrementally instead of rebuilt. Each particle's cell and slot
+ * are remembered, and a particle that changed cell is moved across the cell boundaries in
+ * between, one swap per boundary, which keeps the counting-sort layout intact. When the moves
+ * would cost more than a fresh counting sort the grid rebuilds instead.
+ *
+ * A dense grid can also be walked in parallel. Rows are split into horizontal strips, and since
+ * the stencil reaches at most one row down, strips with the same parity never touch the same
+ * object: all even strips run concurrently, then all odd strips.
+ */
+class Grid implements BroadPhase {
+  // strips handed out per worker thread, so uneven strips still balance across the pool
+  private static final int STRIPS_PER_THREAD = 4;
 
-class Grid {
+  private final float baseCellSize;
+  private final boolean fitted;
   private float cellSize;
-  private final Int2ObjectOpenHashMap<IntArrayList> cells;
+
+  // hashed storage, used while the grid is unbounded
+  private final Long2ObjectOpenHashMap<IntArrayList> cells;
+  // cells holding at least one object since the last rebuild, with their keys; cell lists are
+  // kept between rebuilds and only cleared so that a steady-state rebuild does not allocate
+  private ObjectArrayList<IntArrayList> occupied = new ObjectArrayList<>();
+  private LongArrayList occupiedKeys = new LongArrayList();
+  // the occupied cells of the rebuild before, so that cells left empty can leave the map, and
+  // emptied lists for cells entered next; as particles drift into new cells neither the map nor
+  // the number of lists grows
+  private ObjectArrayList<IntArrayList> previous = new ObjectArrayList<>();
+  private LongArrayList previousKeys = new LongArrayList();
+  private final ObjectArrayList<IntArrayList> spareCells = new ObjectArrayList<>();
+  // the halving of a parallel walk into strips as a binary tree, node k splitting into nodes
+  // 2k + 1 and 2k + 2, kept from walk to walk so that walks do not allocate
+  private StripTask[] stripTasks = new StripTask[0];
+
+  // dense storage, used while the grid is bounded
+  private boolean bounded = false;
+  private float minX;
+  private float minY;
+  private float maxX;
+  private float maxY;
+  private int cols;
+  private int rows;
+  // objects in cell c are cellObjects[cellStart[c]] .. cellObjects[cellStart[c + 1] - 1]
+  private int[] cellStart = new int[1];
+  private int[] cellCursor = new int[0];
+  // dynamic, non-sleeping objects per cell; pairs between cells without any are skipped
+  private int[] cellAwake = new int[0];
+  private int[] cellObjects = new int[0];
+  private int[] objectCell = new int[0];
+
+  // incremental maintenance of full dense builds, indexed by particle
+  private boolean incremental = true;
+  private boolean tracked = false;
+  private Particles trackedParticles;
+  private int trackedSize;
+  private int[] objectSlot = new int[0];
+  private int[] objectTarget = new int[0];
+  private boolean[] objectAwake = new boolean[0];
 
   public Grid(float cellSize) {
+    this(cellSize, true);
+  }
+
+  /**
+   * @param cellSize the cell size, or the smallest cell size when {@code fitted}
+   * @param fitted whether to grow cells to the largest diameter seen at each rebuild
+   */
+  Grid(float cellSize, boolean fitted) {
     if (cellSize <= 0f) {
       throw new IllegalArgumentException("cell size must be greater than zero");
     }
+    this.baseCellSize = cellSize;
+    this.fitted = fitted;
     this.cellSize = cellSize;
-    this.cells = new Int2ObjectOpenHashMap<>();
+    this.cells = new Long2ObjectOpenHashMap<>();
   }
 
-  public void rebuild(List<? extends SimObject> objects) {
+  /**
+   * Switch to dense storage covering the rectangle {@code [minX, maxX) x [minY, maxY)}.
+   */
+  @Override
+  public void setBounds(float minX, float minY, float maxX, float maxY) {
+    if (!(maxX > minX && maxY > minY))
+      throw new IllegalArgumentException("grid bounds must have a positive area");
+    this.minX = minX;
+    this.minY = minY;
+    this.maxX = maxX;
+    this.maxY = maxY;
+    bounded = true;
+    layout();
+    tracked = false;
+    occupied.clear();
+    occupiedKeys.clear();
+    previous.clear();
+    previousKeys.clear();
     cells.clear();
-    // we use index-based iteration because we want to store the index of an object in a cell
-    for (int i = 0; i < objects.size(); i++) {
-      SimObject o = objects.get(i);
-      if (o == null)
+  }
+
+  /**
+   * Switch back to hashed storage for worlds without bounds.
+   */
+  @Override
+  public void clearBounds() {
+    bounded = false;
+  }
+
+  public boolean bounded() {
+    return bounded;
+  }
+
+  public float cellSize() {
+    return cellSize;
+  }
+
+  /**
+   * Keep a bounded grid up to date by relocating the particles that changed cell, rather than
+   * sorting every particle again at each rebuild. Changing the particle count, the bounds or the
+   * cell size still causes a full rebuild.
+   */
+  public void setIncremental(boolean incremental) {
+    this.incremental = incremental;
+    tracked = false;
+  }
+
+  public boolean incremental() {
+    return incremental;
+  }
+
+  @Override
+  public void rebuild(Particles particles) {
+    if (fitted)
+      fitCellSize(particles);
+    if (!bounded) {
+      rebuildHashed(particles);
+    } else if (!(incremental && tracked && particles == trackedParticles
+        && particles.size == trackedSize && relocate(particles))) {
+      rebuildDense(particles, null, 0, particles.size);
+    }
+  }
+
+  /**
+   * Rebuild a bounded grid from a subset of particles only.
+   *
+   * @param subset particle indices, of which {@code subset[from] .. subset[to - 1]} are used
+   */
+  void rebuild(Particles particles, int[] subset, int from, int to) {
+    if (!bounded)
+      throw new IllegalStateException("subset rebuilds need a bounded grid");
+    tracked = false;
+    rebuildDense(particles, subset, from, to);
+  }
+
+  @Override
+  public void forEach(PairConsumer consumer) {
+    if (bounded)
+      forEachDense(consumer);
+    else
+      forEachHashed(consumer);
+  }
+
+  @Override
+  public int occupiedCells() {
+    if (!bounded)
+      return occupied.size();
+    int count = 0;
+    for (int c = 0; c < cols * rows; c++) {
+      if (cellStart[c + 1] > cellStart[c])
+        count++;
+    }
+    return count;
+  }
+
+  /*
+   * Match the cell size to the largest diameter present, since the neighbour stencil only finds
+   * overlaps between objects at most one cell apart. The size given at construction is a floor.
+   */
+  private void fitCellSize(Particles particles) {
+    float[] pr = particles.radius;
+    float maxRadius = 0f;
+    for (int i = 0; i < particles.size; i++) {
+      if (pr[i] > maxRadius)
+        maxRadius = pr[i];
+    }
+    float size = Math.max(baseCellSize, maxRadius * 2f);
+    if (size != cellSize) {
+      cellSize = size;
+      tracked = false;
+      if (bounded)
+        layout();
+    }
+  }
+
+  private void layout() {
+    cols = Math.max(1, (int) Math.ceil((maxX - minX) / cellSize));
+    rows = Math.max(1, (int) Math.ceil((maxY - minY) / cellSize));
+    int numCells = cols * rows;
+    if (cellStart.length < numCells + 1) {
+      cellStart = new int[numCells + 1];
+      cellCursor = new int[numCells];
+      cellAwake = new int[numCells];
+    }
+  }
+
+  private void rebuildDense(Particles particles, int[] subset, int from, int to) {
+    int numCells = cols * rows;
+    int n = to - from;
+    int[] start = cellStart;
+    int[] awake = cellAwake;
+    Arrays.fill(start, 0, numCells + 1, 0);
+    Arrays.fill(awake, 0, numCells, 0);
+    if (objectCell.length < n) {
+      objectCell = new int[particles.capacity()];
+      cellObjects = new int[particles.capacity()];
+    }
+    float[] px = particles.x;
+    float[] py = particles.y;
+    byte[] flags = particles.flags;
+    // count the objects landing in each cell, offset by one so the prefix sum yields starts
+    for (int k = 0; k < n; k++) {
+      int i = subset == null ? k : subset[from + k];
+      int c = row(py[i]) * cols + column(px[i]);
+      objectCell[k] = c;
+      start[c + 1]++;
+      if ((flags[i] & (Particles.DYNAMIC | Particles.SLEEPING)) == Particles.DYNAMIC)
+        awake[c]++;
+    }
+    for (int c = 0; c < numCells; c++) {
+      start[c + 1] += start[c];
+    }
+    int[] cursor = cellCursor;
+    System.arraycopy(start, 0, cursor, 0, numCells);
+    if (subset != null) {
+      for (int k = 0; k < n; k++) {
+        cellObjects[cursor[objectCell[k]]++] = subset[from + k];
+      }
+      return;
+    }
+    if (!incremental) {
+      for (int k = 0; k < n; k++) {
+        cellObjects[cursor[objectCell[k]]++] = k;
+      }
+      return;
+    }
+    if (objectSlot.length < n) {
+      objectSlot = new int[particles.capacity()];
+      objectTarget = new int[particles.capacity()];
+      objectAwake = new boolean[particles.capacity()];
+    }
+    for (int k = 0; k < n; k++) {
+      int slot = cursor[objectCell[k]]++;
+      cellObjects[slot] = k;
+      objectSlot[k] = slot;
+      objectAwake[k] = (flags[k] & (Particles.DYNAMIC | Particles.SLEEPING)) == Particles.DYNAMIC;
+    }
+    tracked = true;
+    trackedParticles = particles;
+    trackedSize = n;
+  }
+
+  /*
+   * Bring a tracked dense grid up to date by moving each particle that changed cell across the
+   * boundaries between its old and new cell. Returns false without touching the grid when that
+   * would take more swaps than a counting sort takes steps.
+   */
+  private boolean relocate(Particles particles) {
+    int n = particles.size;
+    int numCells = cols * rows;
+    float[] px = particles.x;
+    float[] py = particles.y;
+    int[] target = objectTarget;
+    long work = 0;
+    for (int i = 0; i < n; i++) {
+      int c = row(py[i]) * cols + column(px[i]);
+      target[i] = c;
+      work += Math.abs(c - objectCell[i]);
+    }
+    if (work > (long) n * 2 + numCells)
+      return false;
+
+    int[] start = cellStart;
+    int[] objects = cellObjects;
+    int[] slots = objectSlot;
+    int[] awake = cellAwake;
+    byte[] flags = particles.flags;
+    for (int i = 0; i < n; i++) {
+      int from = objectCell[i];
+      int to = target[i];
+      boolean isAwake = (flags[i] & (Particles.DYNAMIC | Particles.SLEEPING)) == Particles.DYNAMIC;
+      if (objectAwake[i])
+        awake[from]--;
+      if (isAwake)
+        awake[to]++;
+      objectAwake[i] = isAwake;
+      if (from == to)
         continue;
-      int minX = worldToCell(o.minX());
-      int maxX = worldToCell(o.maxX());
-      int minY = worldToCell(o.minY());
-      int maxY = worldToCell(o.maxY());
-      for (int x = minX; x <= maxX; x++) {
-        for (int y = minY; y <= maxY; y++) {
-          int key = cellKey(x, y);
-          cells.computeIfAbsent(key, k -> new IntArrayList()).add(i);
+      // each swap with the particle at the far end of the current cell lets the boundary move
+      // past it, leaving particle i at the near end of the next cell
+      int slot = slots[i];
+      if (from < to) {
+        for (int c = from; c < to; c++) {
+          int edge = --start[c + 1];
+          int other = objects[edge];
+          objects[slot] = other;
+          slots[other] = slot;
+          objects[edge] = i;
+          slot = edge;
+        }
+      } else {
+        for (int c = from; c > to; c--) {
+          int edge = start[c]++;
+          int other = objects[edge];
+          objects[slot] = other;
+          slots[other] = slot;
+          objects[edge] = i;
+          slot = edge;
+        }
+      }
+      slots[i] = slot;
+      objectCell[i] = to;
+    }
+    return true;
+  }
+
+  /**
+   * Visit particle {@code i} against every object of a bounded grid whose cell is within one
+   * cell of the point {@code (x, y)}.
+   */
+  void forEachNear(int i, float x, float y, PairConsumer consumer) {
+    int cx = column(x);
+    int cy = row(y);
+    int fromX = Math.max(0, cx - 1);
+    int toX = Math.min(cols - 1, cx + 1);
+    int toY = Math.min(rows - 1, cy + 1);
+    for (int row = Math.max(0, cy - 1); row <= toY; row++) {
+      int end = cellStart[row * cols + toX + 1];
+      for (int k = cellStart[row * cols + fromX]; k < end; k++) {
+        consumer.accept(i, cellObjects[k]);
+      }
+    }
+  }
+
+  /**
+   * Visit every candidate pair using the threads of some pool. Pairs are handed to the consumer
+   * concurrently, but no two concurrent calls ever share an object index. Falls back to
+   * {@link #forEach(PairConsumer)} while the grid is unbounded.
+   */
+  @Override
+  public void forEachParallel(PairConsumer consumer, ForkJoinPool pool) {
+    int strips = Math.min(rows, pool.getParallelism() * STRIPS_PER_THREAD);
+    if (!bounded || strips < 2) {
+      forEach(consumer);
+      return;
+    }
+    int height = (rows + strips - 1) / strips;
+    strips = (rows + height - 1) / height;
+    StripTask root = stripTasks((strips + 1) / 2);
+    pool.invoke(root.start(consumer, height, 0, (strips + 1) / 2, 0));
+    pool.invoke(root.start(consumer, height, 0, strips / 2, 1));
+  }
+
+  private StripTask stripTasks(int strips) {
+    int leaves = 1;
+    while (leaves < strips) {
+      leaves *= 2;
+    }
+    if (stripTasks.length < leaves * 2 - 1) {
+      int old = stripTasks.length;
+      stripTasks = Arrays.copyOf(stripTasks, leaves * 2 - 1);
+      for (int k = old; k < stripTasks.length; k++) {
+        stripTasks[k] = new StripTask(k);
+      }
+    }
+    return stripTasks[0];
+  }
+
+  private void forEachDense(PairConsumer consumer) {
+    forEachInRows(0, rows, consumer);
+  }
+
+  private void forEachInRows(int fromRow, int toRow, PairConsumer consumer) {
+    for (int y = fromRow; y < toRow; y++) {
+      for (int x = 0; x < cols; x++) {
+        int c = y * cols + x;
+        if (cellStart[c] == cellStart[c + 1])
+          continue;
+        if (cellAwake[c] > 0)
+          forEachWithin(c, consumer);
+        if (x + 1 < cols)
+          forEachBetween(c, c + 1, consumer);
+        if (y + 1 < rows) {
+          int below = c + cols;
+          if (x > 0)
+            forEachBetween(c, below - 1, consumer);
+          forEachBetween(c, below, consumer);
+          if (x + 1 < cols)
+            forEachBetween(c, below + 1, consumer);
         }
       }
     }
   }
 
-  public void forEach(BiConsumer<Integer, Integer> consumer) {
-    for (IntArrayList cell : cells.values()) {
+  /*
+   * Walks strips phase, phase + 2, phase + 4, ... numbered from lo (inclusive) to hi (exclusive)
+   * in units of same-parity strips, splitting in half until a single strip remains.
+   */
+  private class StripTask extends RecursiveAction {
+    private final int node;
+    private PairConsumer consumer;
+    private int height;
+    private int lo;
+    private int hi;
+    private int phase;
+
+    StripTask(int node) {
+      this.node = node;
+    }
+
+    StripTask start(PairConsumer consumer, int height, int lo, int hi, int phase) {
+      this.consumer = consumer;
+      this.height = height;
+      this.lo = lo;
+      this.hi = hi;
+      this.phase = phase;
+      reinitialize();
+      return this;
+    }
+
+    @Override
+    protected void compute() {
+      if (hi - lo > 1) {
+        int mid = (lo + hi) >>> 1;
+        invokeAll(stripTasks[node * 2 + 1].start(consumer, height, lo, mid, phase),
+            stripTasks[node * 2 + 2].start(consumer, height, mid, hi, phase));
+        return;
+      }
+      if (hi == lo)
+        return;
+      int fromRow = (lo * 2 + phase) * height;
+      forEachInRows(fromRow, Math.min(rows, fromRow + height), consumer);
+    }
+  }
+
+  private void forEachWithin(int c, PairConsumer consumer) {
+    int[] objects = cellObjects;
+    int end = cellStart[c + 1];
+    for (int i = cellStart[c]; i < end; i++) {
+      int o1 = objects[i];
+      for (int j = i + 1; j < end; j++) {
+        consumer.accept(o1, objects[j]);
+      }
+    }
+  }
+
+  private void forEachBetween(int c1, int c2, PairConsumer consumer) {
+    int[] objects = cellObjects;
+    int start2 = cellStart[c2];
+    int end2 = cellStart[c2 + 1];
+    if (start2 == end2 || (cellAwake[c1] == 0 && cellAwake[c2] == 0))
+      return;
+    int end1 = cellStart[c1 + 1];
+    for (int i = cellStart[c1]; i < end1; i++) {
+      int o1 = objects[i];
+      for (int j = start2; j < end2; j++) {
+        consumer.accept(o1, objects[j]);
+      }
+    }
+  }
+
+  private void rebuildHashed(Particles particles) {
+    ObjectArrayList<IntArrayList> lists = previous;
+    LongArrayList keys = previousKeys;
+    previous = occupied;
+    previousKeys = occupiedKeys;
+    occupied = lists;
+    occupiedKeys = keys;
+    occupied.clear();
+    occupiedKeys.clear();
+    for (int c = 0; c < previous.size(); c++) {
+      previous.get(c).clear();
+    }
+    float[] px = particles.x;
+    float[] py = particles.y;
+    for (int i = 0; i < particles.size; i++) {
+      long key = cellKey(worldToCell(px[i]), worldToCell(py[i]));
+      IntArrayList cell = cells.get(key);
+      if (cell == null) {
+        cell = spareCells.isEmpty() ? new IntArrayList() : spareCells.pop();
+        cells.put(key, cell);
+      }
+      if (cell.isEmpty()) {
+        occupied.add(cell);
+        occupiedKeys.add(key);
+      }
+      cell.add(i);
+    }
+    for (int c = 0; c < previous.size(); c++) {
+      IntArrayList cell = previous.get(c);
+      if (cell.isEmpty()) {
+        cells.remove(previousKeys.getLong(c));
+        spareCells.push(cell);
+      }
+    }
+  }
+
+  private void forEachHashed(PairConsumer consumer) {
+    for (int c = 0; c < occupied.size(); c++) {
+      IntArrayList cell = occupied.get(c);
+      long key = occupiedKeys.getLong(c);
+      int x = (int) (key >> 32);
+      int y = (int) key;
       int size = cell.size();
       for (int i = 0; i < size; i++) {
         int o1 = cell.getInt(i);
         for (int j = i + 1; j < size; j++) {
-          int o2 = cell.getInt(j);
-          consumer.accept(o1, o2);
+          consumer.accept(o1, cell.getInt(j));
         }
       }
+      forEachBetween(cell, cells.get(cellKey(x + 1, y)), consumer);
+      forEachBetween(cell, cells.get(cellKey(x - 1, y + 1)), consumer);
+      forEachBetween(cell, cells.get(cellKey(x, y + 1)), consumer);
+      forEachBetween(cell, cells.get(cellKey(x + 1, y + 1)), consumer);
+    }
+  }
+
+  private static void forEachBetween(IntArrayList c1, IntArrayList c2, PairConsumer consumer) {
+    if (c2 == null || c2.isEmpty())
+      return;
+    int size1 = c1.size();
+    int size2 = c2.size();
+    for (int i = 0; i < size1; i++) {
+      int o1 = c1.getInt(i);
+      for (int j = 0; j < size2; j++) {
+        consumer.accept(o1, c2.getInt(j));
+      }
     }
   }
 
+  private int column(float coord) {
+    int x = (int) Math.floor((coord - minX) / cellSize);
+    return x < 0 ? 0 : (x >= cols ? cols - 1 : x);
+  }
+
+  private int row(float coord) {
+    int y = (int) Math.floor((coord - minY) / cellSize);
+    return y < 0 ? 0 : (y >= rows ? rows - 1 : y);
+  }
+
   private int worldToCell(float coord) {
     return (int) Math.floor(coord / cellSize);
   }
 
-  private static int cellKey(int x, int y) {
-    return (x & 0xFFFF) << 16 | (y & 0xFFFF);
+  private static long cellKey(int x, int y) {
+    return (long) x << 32 | (y & 0xFFFFFFFFL);
   }
 }
@@ -0,0 +1,168 @@
+package jengine.physics;
+
+import java.util.Arrays;
+
+/**
+ * Multi-level grid broadphase for scenes with mixed radii. Level {@code k} is a dense grid with
+ * cells {@code base * 2^k} wide, and each particle lives in the finest level whose cells are at
+ * least as wide as its diameter, so small particles are not crowded into cells sized for the
+ * largest one.
+ *
+ * Pairs within a level come from that level's neighbour stencil. Pairs across levels are found
+ * from the finer particle: it is tested against the 3x3 cells around it in every coarser level,
+ * which covers every possible overlap because a coarser neighbour is at most half a coarse cell
+ * wide. The base cell size is chosen from the smallest live radius at each rebuild, rounded up to
+ * a power of two so that the levels only change when the radius distribution does.
+ */
+class HierarchicalGrid implements BroadPhase {
+  private static final int MAX_LEVELS = 16;
+  private static final float MIN_CELL_SIZE = 1f;
+
+  private final Grid[] levels = new Grid[MAX_LEVELS];
+  private int numLevels = 0;
+  private float baseCellSize = 0f;
+  private float minX;
+  private float minY;
+  private float maxX;
+  private float maxY;
+  private boolean bounded = false;
+
+  // particles of level k are levelObjects[levelStart[k]] .. levelObjects[levelStart[k + 1] - 1]
+  private final int[] levelStart = new int[MAX_LEVELS + 1];
+  private final int[] levelCursor = new int[MAX_LEVELS];
+  private int[] levelObjects = new int[0];
+  private int[] objectLevel = new int[0];
+  private Particles particles;
+
+  @Override
+  public void setBounds(float minX, float minY, float maxX, float maxY) {
+    if (!(maxX > minX && maxY > minY))
+      throw new IllegalArgumentException("grid bounds must have a positive area");
+    this.minX = minX;
+    this.minY = minY;
+    this.maxX = maxX;
+    this.maxY = maxY;
+    bounded = true;
+    for (int k = 0; k < numLevels; k++) {
+      levels[k].setBounds(minX, minY, maxX, maxY);
+    }
+    Arrays.fill(levels, numLevels, MAX_LEVELS, null);
+  }
+
+  @Override
+  public void clearBounds() {
+    bounded = false;
+  }
+
+  public boolean bounded() {
+    return bounded;
+  }
+
+  public int numLevels() {
+    return numLevels;
+  }
+
+  @Override
+  public void rebuild(Particles particles) {
+    if (!bounded)
+      throw new IllegalStateException("a hierarchical grid needs bounds");
+    this.particles = particles;
+    int n = particles.size;
+    float[] pr = particles.radius;
+    float minRadius = Float.MAX_VALUE;
+    float maxRadius = 0f;
+    for (int i = 0; i < n; i++) {
+      minRadius = Math.min(minRadius, pr[i]);
+      maxRadius = Math.max(maxRadius, pr[i]);
+    }
+    if (n == 0) {
+      numLevels = 0;
+      return;
+    }
+    fitLevels(minRadius, maxRadius);
+
+    if (objectLevel.length < n) {
+      objectLevel = new int[particles.capacity()];
+      levelObjects = new int[particles.capacity()];
+    }
+    int[] start = levelStart;
+    for (int k = 0; k <= numLevels; k++) {
+      start[k] = 0;
+    }
+    for (int i = 0; i < n; i++) {
+      int k = levelFor(pr[i]);
+      objectLevel[i] = k;
+      start[k + 1]++;
+    }
+    for (int k = 0; k < numLevels; k++) {
+      start[k + 1] += start[k];
+      levelCursor[k] = start[k];
+    }
+    for (int i = 0; i < n; i++) {
+      levelObjects[levelCursor[objectLevel[i]]++] = i;
+    }
+    for (int k = 0; k < numLevels; k++) {
+      levels[k].rebuild(particles, levelObjects, start[k], start[k + 1]);
+    }
+  }
+
+  @Override
+  public void forEach(PairConsumer consumer) {
+    float[] px = particles.x;
+    float[] py = particles.y;
+    for (int k = 0; k < numLevels; k++) {
+      if (levelStart[k] == levelStart[k + 1])
+        continue;
+      levels[k].forEach(consumer);
+      for (int m = k + 1; m < numLevels; m++) {
+        if (levelStart[m] == levelStart[m + 1])
+          continue;
+        Grid coarse = levels[m];
+        for (int l = levelStart[k]; l < levelStart[k + 1]; l++) {
+          int i = levelObjects[l];
+          coarse.forEachNear(i, px[i], py[i], consumer);
+        }
+      }
+    }
+  }
+
+  @Override
+  public int occupiedCells() {
+    int count = 0;
+    for (int k = 0; k < numLevels; k++) {
+      if (levelStart[k] != levelStart[k + 1])
+        count += levels[k].occupiedCells();
+    }
+    return count;
+  }
+
+  private void fitLevels(float minRadius, float maxRadius) {
+    float base = Math.max(MIN_CELL_SIZE, minRadius * 2f);
+    base = (float) Math.pow(2, Math.ceil(Math.log(base) / Math.log(2)));
+    int count = 1;
+    while (count < MAX_LEVELS && base * (1 << (count - 1)) < maxRadius * 2f) {
+      count++;
+    }
+    if (base != baseCellSize) {
+      Arrays.fill(levels, null);
+      baseCellSize = base;
+    }
+    for (int k = 0; k < count; k++) {
+      if (levels[k] == null) {
+        levels[k] = new Grid(base * (1 << k), false);
+        levels[k].setBounds(minX, minY, maxX, maxY);
+      }
+    }
+    numLevels = count;
+  }
+
+  private int levelFor(float radius) {
+    int k = 0;
+    float size = baseCellSize;
+    while (size < radius * 2f && k < numLevels - 1) {
+      size *= 2f;
+      k++;
+    }
+    return k;
+  }
+}
@@ -0,0 +1,61 @@
+package jengine.physics;
+
+import java.util.Arrays;
+
+/**
+ * Computes the order of particles along a Morton (Z-order) curve through the cells of a grid.
+ * Particles close in space end up close in storage, so the collision passes over neighbouring
+ * cells touch neighbouring memory instead of jumping across the whole store.
+ */
+class MortonOrder {
+  // cells per axis the codes can tell apart; particles further out share the edge cells
+  private static final int MAX_CELL = 0xFFFF;
+
+  private long[] keys = new long[0];
+  private int[] order = new int[0];
+
+  /**
+   * @return the permutation that sorts the particles by the Morton code of their cell, valid for
+   *     indices {@code [0, particles.size())} until the next call
+   */
+  int[] order(Particles particles, float cellSize) {
+    int n = particles.size;
+    if (keys.length < n) {
+      keys = new long[particles.capacity()];
+      order = new int[particles.capacity()];
+    }
+    float[] px = particles.x;
+    float[] py = particles.y;
+    float minX = Float.MAX_VALUE;
+    float minY = Float.MAX_VALUE;
+    for (int i = 0; i < n; i++) {
+      minX = Math.min(minX, px[i]);
+      minY = Math.min(minY, py[i]);
+    }
+    float scale = 1f / cellSize;
+    for (int i = 0; i < n; i++) {
+      int cx = Math.min(MAX_CELL, (int) ((px[i] - minX) * scale));
+      int cy = Math.min(MAX_CELL, (int) ((py[i] - minY) * scale));
+      long code = (spread(cx) | spread(cy) << 1) & 0xFFFFFFFFL;
+      // indices fit in 31 bits, so the key stays positive and sorts by code, then index
+      keys[i] = code << 31 | i;
+    }
+    Arrays.sort(keys, 0, n);
+    for (int k = 0; k < n; k++) {
+      order[k] = (int) (keys[k] & 0x7FFFFFFF);
+    }
+    return order;
+  }
+
+  /*
+   * Spread the low 16 bits of v out to the even bits of the result.
+   */
+  private static int spread(int v) {
+    v &= 0xFFFF;
+    v = (v | (v << 8)) & 0x00FF00FF;
+    v = (v | (v << 4)) & 0x0F0F0F0F;
+    v = (v | (v << 2)) & 0x33333333;
+    v = (v | (v << 1)) & 0x55555555;
+    return v;
+  }
+}
@@ -0,0 +1,9 @@
+package jengine.physics;
+
+/**
+ * Receives candidate pairs of particle indices without boxing them.
+ */
+@FunctionalInterface
+public interface PairConsumer {
+  void accept(int i, int j);
+}
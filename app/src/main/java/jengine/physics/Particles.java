@@ -0,0 +1,563 @@
+package jengine.physics;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Structure-of-arrays storage for every particle in a simulation. Each particle is a slot index
+ * into a set of parallel primitive arrays, so the physics passes stream through contiguous memory
+ * instead of chasing one heap object (and three Vectors) per particle.
+ *
+ * Live particles are always packed into indices {@code [0, size)}, and removal swaps the last
+ * particle into the hole, so indices are not stable. Callers that need to keep a reference hold a
+ * generational handle instead: it names a slot in an indirection table together with the
+ * generation of that slot, and stops resolving once its particle has been removed, even if the
+ * slot has since been reused.
+ */
+public class Particles {
+  public static final byte DYNAMIC = 1;
+  public static final byte SLEEPING = 2;
+  public static final long NO_HANDLE = -1L;
+  public static final int WHITE = 0xFFFFFF;
+
+  private static final int DEFAULT_CAPACITY = 64;
+
+  float[] x;
+  float[] y;
+  float[] prevX;
+  float[] prevY;
+  // positions at the start of the last step, for drawing part way through it
+  float[] startX;
+  float[] startY;
+  float[] ax;
+  float[] ay;
+  float[] radius;
+  float[] mass;
+  // packed 0xRRGGBB
+  int[] colour;
+  byte[] flags;
+  // consecutive steps each particle has moved less than the sleep threshold
+  int[] still;
+  int size = 0;
+  // particles removed since the last step, for waking the sleepers that rested on them
+  float[] removedX = new float[0];
+  float[] removedY = new float[0];
+  float[] removedRadius = new float[0];
+  int removedCount = 0;
+
+  // handle table: the handle slot of each index, and the index (or -1) and generation of each slot
+  private int[] slotOf;
+  private int[] indexOfSlot;
+  private int[] generation;
+  private int slots = 0;
+  private int[] freeSlots;
+  private int freeCount = 0;
+  // bumped whenever particles are added, removed, moved or change radius, mass or colour
+  private int layoutVersion = 0;
+  // spare arrays that reorder() gathers into before swapping them with the live ones
+  private float[] spareFloats = new float[0];
+  private int[] spareInts = new int[0];
+  private byte[] spareBytes = new byte[0];
+
+  public Particles() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public Particles(int capacity) {
+    if (capacity < 0)
+      throw new IllegalArgumentException("capacity must not be negative");
+    x = new float[capacity];
+    y = new float[capacity];
+    prevX = new float[capacity];
+    prevY = new float[capacity];
+    startX = new float[capacity];
+    startY = new float[capacity];
+    ax = new float[capacity];
+    ay = new float[capacity];
+    radius = new float[capacity];
+    mass = new float[capacity];
+    colour = new int[capacity];
+    flags = new byte[capacity];
+    still = new int[capacity];
+    slotOf = new int[capacity];
+    indexOfSlot = new int[capacity];
+    generation = new int[capacity];
+    freeSlots = new int[capacity];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int capacity() {
+    return x.length;
+  }
+
+  /**
+   * Append a particle to the end of the store.
+   *
+   * @return the index of the new particle
+   */
+  public int add(float x, float y, float prevX, float prevY, float radius, float mass,
+      boolean dynamic) {
+    ensureCapacity(size + 1);
+    layoutVersion++;
+    int i = size++;
+    this.x[i] = x;
+    this.y[i] = y;
+    this.prevX[i] = prevX;
+    this.prevY[i] = prevY;
+    this.startX[i] = x;
+    this.startY[i] = y;
+    this.ax[i] = 0f;
+    this.ay[i] = 0f;
+    this.radius[i] = radius;
+    this.mass[i] = mass;
+    this.colour[i] = WHITE;
+    this.flags[i] = dynamic ? DYNAMIC : 0;
+    this.still[i] = 0;
+    int slot = freeCount > 0 ? freeSlots[--freeCount] : slots++;
+    slotOf[i] = slot;
+    indexOfSlot[slot] = i;
+    return i;
+  }
+
+  /**
+   * Append many particles to the end of the store at once, column by column, as a run of
+   * {@link #add} calls would one by one.
+   *
+   * @param colour packed 0xRRGGBB colours
+   * @return the index of the first new particle; the rest follow it
+   */
+  public int addAll(int n, float[] x, float[] y, float[] prevX, float[] prevY, float[] radius,
+      int[] colour, float mass, boolean dynamic) {
+    if (n < 0)
+      throw new IllegalArgumentException("count must not be negative");
+    ensureCapacity(size + n);
+    layoutVersion++;
+    int first = size;
+    int end = first + n;
+    System.arraycopy(x, 0, this.x, first, n);
+    System.arraycopy(y, 0, this.y, first, n);
+    System.arraycopy(prevX, 0, this.prevX, first, n);
+    System.arraycopy(prevY, 0, this.prevY, first, n);
+    System.arraycopy(x, 0, this.startX, first, n);
+    System.arraycopy(y, 0, this.startY, first, n);
+    System.arraycopy(radius, 0, this.radius, first, n);
+    System.arraycopy(colour, 0, this.colour, first, n);
+    Arrays.fill(this.ax, first, end, 0f);
+    Arrays.fill(this.ay, first, end, 0f);
+    Arrays.fill(this.mass, first, end, mass);
+    Arrays.fill(this.flags, first, end, dynamic ? DYNAMIC : 0);
+    Arrays.fill(this.still, first, end, 0);
+    for (int i = first; i < end; i++) {
+      int slot = freeCount > 0 ? freeSlots[--freeCount] : slots++;
+      slotOf[i] = slot;
+      indexOfSlot[slot] = i;
+    }
+    size = end;
+    return first;
+  }
+
+  /**
+   * Remove the particle at some index in O(1) by moving the last particle into its place. Handles
+   * to the removed particle stop resolving; handles to the moved particle follow it. Sleeping
+   * particles it touched are woken at the next step.
+   *
+   * @param i the index to remove
+   */
+  public void remove(int i) {
+    checkIndex(i);
+    layoutVersion++;
+    if (removedCount == removedX.length) {
+      int grown = Math.max(DEFAULT_CAPACITY, removedCount * 2);
+      removedX = Arrays.copyOf(removedX, grown);
+      removedY = Arrays.copyOf(removedY, grown);
+      removedRadius = Arrays.copyOf(removedRadius, grown);
+    }
+    removedX[removedCount] = x[i];
+    removedY[removedCount] = y[i];
+    removedRadius[removedCount] = radius[i];
+    removedCount++;
+    int slot = slotOf[i];
+    generation[slot]++;
+    indexOfSlot[slot] = -1;
+    freeSlots[freeCount++] = slot;
+    int last = --size;
+    if (i != last)
+      move(last, i);
+  }
+
+  /**
+   * Remove the particle some handle refers to.
+   *
+   * @return whether the handle was live
+   */
+  public boolean remove(long handle) {
+    int i = indexOf(handle);
+    if (i < 0)
+      return false;
+    remove(i);
+    return true;
+  }
+
+  public void clear() {
+    layoutVersion++;
+    for (int i = 0; i < size; i++) {
+      int slot = slotOf[i];
+      generation[slot]++;
+      indexOfSlot[slot] = -1;
+      freeSlots[freeCount++] = slot;
+    }
+    size = 0;
+    removedCount = 0;
+  }
+
+  /**
+   * Get a handle to the particle currently at some index.
+   */
+  public long handle(int i) {
+    checkIndex(i);
+    int slot = slotOf[i];
+    return (long) generation[slot] << 32 | slot;
+  }
+
+  /**
+   * Resolve a handle to the current index of its particle.
+   *
+   * @return the index, or -1 if the particle has been removed
+   */
+  public int indexOf(long handle) {
+    if (handle < 0)
+      return -1;
+    int slot = (int) handle;
+    if (slot >= slots || generation[slot] != (int) (handle >>> 32))
+      return -1;
+    return indexOfSlot[slot];
+  }
+
+  public boolean isLive(long handle) {
+    return indexOf(handle) >= 0;
+  }
+
+  /**
+   * Permute the particles so that the particle at {@code order[k]} moves to index {@code k}.
+   * Handles keep resolving to the same particles.
+   *
+   * @param order a permutation of {@code [0, size)}
+   */
+  void reorder(int[] order) {
+    int n = size;
+    layoutVersion++;
+    if (spareFloats.length < x.length) {
+      spareFloats = new float[x.length];
+      spareInts = new int[x.length];
+      spareBytes = new byte[x.length];
+    }
+    x = gather(x, order, n);
+    y = gather(y, order, n);
+    prevX = gather(prevX, order, n);
+    prevY = gather(prevY, order, n);
+    startX = gather(startX, order, n);
+    startY = gather(startY, order, n);
+    ax = gather(ax, order, n);
+    ay = gather(ay, order, n);
+    radius = gather(radius, order, n);
+    mass = gather(mass, order, n);
+    colour = gather(colour, order, n);
+    still = gather(still, order, n);
+    slotOf = gather(slotOf, order, n);
+    byte[] bytes = spareBytes;
+    for (int k = 0; k < n; k++) {
+      bytes[k] = flags[order[k]];
+    }
+    spareBytes = flags;
+    flags = bytes;
+    for (int k = 0; k < n; k++) {
+      indexOfSlot[slotOf[k]] = k;
+    }
+  }
+
+  private float[] gather(float[] values, int[] order, int n) {
+    float[] gathered = spareFloats;
+    for (int k = 0; k < n; k++) {
+      gathered[k] = values[order[k]];
+    }
+    spareFloats = values;
+    return gathered;
+  }
+
+  private int[] gather(int[] values, int[] order, int n) {
+    int[] gathered = spareInts;
+    for (int k = 0; k < n; k++) {
+      gathered[k] = values[order[k]];
+    }
+    spareInts = values;
+    return gathered;
+  }
+
+  /**
+   * A counter that changes whenever particles are added, removed or moved between indices, or
+   * change radius, mass or colour; while it stays the same, only positions and flags can have
+   * changed.
+   */
+  public int layoutVersion() {
+    return layoutVersion;
+  }
+
+  /* bulk state transfer, for recordings and checkpoints */
+
+  /**
+   * Get the number of bytes {@link #writeState} writes for some number of particles.
+   */
+  public static int stateBytes(int n, boolean kinematicsOnly) {
+    return n * (kinematicsOnly ? 4 * Float.BYTES : 7 * Float.BYTES) + (n + 3 & ~3);
+  }
+
+  /**
+   * Write the state of every particle to a buffer, in the buffer's byte order: the x, y, prevX and
+   * prevY arrays, then the radius, mass and colour arrays unless only kinematics are wanted, then
+   * the flags padded to a multiple of four bytes. Acceleration and sleep counters are not kept.
+   */
+  public void writeState(ByteBuffer dst, boolean kinematicsOnly) {
+    int n = size;
+    putFloats(dst, x, n);
+    putFloats(dst, y, n);
+    putFloats(dst, prevX, n);
+    putFloats(dst, prevY, n);
+    if (!kinematicsOnly) {
+      putFloats(dst, radius, n);
+      putFloats(dst, mass, n);
+      dst.asIntBuffer().put(colour, 0, n);
+      dst.position(dst.position() + n * Integer.BYTES);
+    }
+    dst.put(flags, 0, n);
+    dst.position(dst.position() + ((n + 3 & ~3) - n));
+  }
+
+  /**
+   * Read state written by {@link #writeState}. A full read replaces every particle, and every
+   * handle taken before it stops resolving; a kinematics-only read updates the positions and flags
+   * of a store that already holds {@code n} particles.
+   */
+  public void readState(ByteBuffer src, int n, boolean kinematicsOnly) {
+    if (kinematicsOnly && n != size)
+      throw new IllegalArgumentException("state is for " + n + " particles, store has " + size);
+    if (!kinematicsOnly) {
+      clear();
+      ensureCapacity(n);
+      // a fresh handle table: clear() already retired every live handle
+      freeCount = 0;
+      slots = n;
+      for (int i = 0; i < n; i++) {
+        slotOf[i] = i;
+        indexOfSlot[i] = i;
+      }
+      size = n;
+    }
+    getFloats(src, x, n);
+    getFloats(src, y, n);
+    getFloats(src, prevX, n);
+    getFloats(src, prevY, n);
+    if (!kinematicsOnly) {
+      getFloats(src, radius, n);
+      getFloats(src, mass, n);
+      src.asIntBuffer().get(colour, 0, n);
+      src.position(src.position() + n * Integer.BYTES);
+      Arrays.fill(ax, 0, n, 0f);
+      Arrays.fill(ay, 0, n, 0f);
+    }
+    src.get(flags, 0, n);
+    src.position(src.position() + ((n + 3 & ~3) - n));
+    Arrays.fill(still, 0, n, 0);
+    markStepStart();
+  }
+
+  /**
+   * Remember the current positions as those at the start of a step.
+   */
+  void markStepStart() {
+    System.arraycopy(x, 0, startX, 0, size);
+    System.arraycopy(y, 0, startY, 0, size);
+  }
+
+  private static void putFloats(ByteBuffer dst, float[] values, int n) {
+    dst.asFloatBuffer().put(values, 0, n);
+    dst.position(dst.position() + n * Float.BYTES);
+  }
+
+  private static void getFloats(ByteBuffer src, float[] values, int n) {
+    src.asFloatBuffer().get(values, 0, n);
+    src.position(src.position() + n * Float.BYTES);
+  }
+
+  private void move(int from, int to) {
+    x[to] = x[from];
+    y[to] = y[from];
+    prevX[to] = prevX[from];
+    prevY[to] = prevY[from];
+    startX[to] = startX[from];
+    startY[to] = startY[from];
+    ax[to] = ax[from];
+    ay[to] = ay[from];
+    radius[to] = radius[from];
+    mass[to] = mass[from];
+    colour[to] = colour[from];
+    flags[to] = flags[from];
+    still[to] = still[from];
+    int slot = slotOf[from];
+    slotOf[to] = slot;
+    indexOfSlot[slot] = to;
+  }
+
+  public void ensureCapacity(int capacity) {
+    if (capacity <= x.length)
+      return;
+    int grown = Math.max(capacity, Math.max(DEFAULT_CAPACITY, x.length + (x.length >> 1)));
+    x = Arrays.copyOf(x, grown);
+    y = Arrays.copyOf(y, grown);
+    prevX = Arrays.copyOf(prevX, grown);
+    prevY = Arrays.copyOf(prevY, grown);
+    startX = Arrays.copyOf(startX, grown);
+    startY = Arrays.copyOf(startY, grown);
+    ax = Arrays.copyOf(ax, grown);
+    ay = Arrays.copyOf(ay, grown);
+    radius = Arrays.copyOf(radius, grown);
+    mass = Arrays.copyOf(mass, grown);
+    colour = Arrays.copyOf(colour, grown);
+    flags = Arrays.copyOf(flags, grown);
+    still = Arrays.copyOf(still, grown);
+    slotOf = Arrays.copyOf(slotOf, grown);
+    indexOfSlot = Arrays.copyOf(indexOfSlot, grown);
+    generation = Arrays.copyOf(generation, grown);
+    freeSlots = Arrays.copyOf(freeSlots, grown);
+  }
+
+  /* per-particle accessors */
+
+  public float x(int i) {
+    return x[i];
+  }
+
+  public float y(int i) {
+    return y[i];
+  }
+
+  public float prevX(int i) {
+    return prevX[i];
+  }
+
+  public float prevY(int i) {
+    return prevY[i];
+  }
+
+  /**
+   * Get the x coordinate at the start of the last physics step, or where the particle was added
+   * if no step has run since.
+   */
+  public float stepStartX(int i) {
+    return startX[i];
+  }
+
+  public float stepStartY(int i) {
+    return startY[i];
+  }
+
+  public float accelerationX(int i) {
+    return ax[i];
+  }
+
+  public float accelerationY(int i) {
+    return ay[i];
+  }
+
+  public float radius(int i) {
+    return radius[i];
+  }
+
+  public float mass(int i) {
+    return mass[i];
+  }
+
+  public int colour(int i) {
+    return colour[i];
+  }
+
+  public boolean isDynamic(int i) {
+    return (flags[i] & DYNAMIC) != 0;
+  }
+
+  public boolean isSleeping(int i) {
+    return (flags[i] & SLEEPING) != 0;
+  }
+
+  /**
+   * Whether a particle takes part in integration: dynamic and not asleep.
+   */
+  public boolean isAwake(int i) {
+    return (flags[i] & (DYNAMIC | SLEEPING)) == DYNAMIC;
+  }
+
+  /**
+   * Wake a sleeping particle so that it is integrated again from the next substep.
+   */
+  public void wake(int i) {
+    flags[i] &= ~SLEEPING;
+    still[i] = 0;
+  }
+
+  /**
+   * Wake every particle, for example after changing gravity or the border.
+   */
+  public void wakeAll() {
+    for (int i = 0; i < size; i++) {
+      wake(i);
+    }
+  }
+
+  public void setPosition(int i, float x, float y) {
+    this.x[i] = x;
+    this.y[i] = y;
+    wake(i);
+  }
+
+  public void setPreviousPosition(int i, float x, float y) {
+    this.prevX[i] = x;
+    this.prevY[i] = y;
+    wake(i);
+  }
+
+  public void setAcceleration(int i, float x, float y) {
+    this.ax[i] = x;
+    this.ay[i] = y;
+    wake(i);
+  }
+
+  public void setRadius(int i, float radius) {
+    this.radius[i] = radius;
+    layoutVersion++;
+  }
+
+  public void setMass(int i, float mass) {
+    this.mass[i] = mass;
+    layoutVersion++;
+  }
+
+  public void setColour(int i, int rgb) {
+    colour[i] = rgb & 0xFFFFFF;
+    layoutVersion++;
+  }
+
+  public void setDynamic(int i, boolean dynamic) {
+    if (dynamic)
+      flags[i] |= DYNAMIC;
+    else
+      flags[i] &= ~DYNAMIC;
+    wake(i);
+  }
+
+  private void checkIndex(int i) {
+    if (i < 0 || i >= size)
+      throw new IndexOutOfBoundsException("index " + i + " out of bounds for size " + size);
+  }
+}
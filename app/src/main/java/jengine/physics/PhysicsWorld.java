@@ -1,22 +1,88 @@
 package jengine.physics;
 
 import jengine.JEngine;
+import jengine.metrics.Metrics;
 import jengine.objects.SimObject;
-import jengine.objects.DynamicAtom;
 
-import java.util.List;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
 
 public class PhysicsWorld {
+  private static final int PASS_INTEGRATE = 0;
+  private static final int PASS_CONSTRAIN = 1;
+  private static final int PASS_CONSTRAIN_INTEGRATE = 2;
+  // BROADPHASE_AUTO switches to the hierarchical grid once the largest radius is this many times
+  // the smallest
+  private static final float AUTO_RADIUS_SPREAD = 4f;
+  // ... and to sweep and prune while there are fewer particles than this per uniform grid cell
+  private static final float AUTO_SPARSE_DENSITY = 0.05f;
+  private static final int AWAKE_MASK = Particles.DYNAMIC | Particles.SLEEPING;
+  // how far apart two particles may be and still count as resting on each other, relative to the
+  // sum of their radii
+  private static final float TOUCH_SLACK = 1.1f;
+  // a sleeper is only woken by a neighbour this many times faster than the sleep threshold, so
+  // that the jitter of a settling pile does not keep waking it
+  private static final float WAKE_FACTOR = 2f;
+  // whether the JVM was started with --add-modules jdk.incubator.vector
+  private static final boolean SIMD_AVAILABLE =
+      ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
   private float width;
   private float height;
   private Constraint border = null;
+  private int borderType = JEngine.BORDER_NONE;
   private float[] gravity = new float[] {0f, 500f};
   private float damping = 0.9f;
-  private Grid grid = new Grid(50f);
+  private Grid grid = new Grid(10f);
+  private HierarchicalGrid hierarchicalGrid = new HierarchicalGrid();
+  private SweepAndPrune sweepAndPrune = new SweepAndPrune();
+  private BroadPhase customBroadPhase = null;
+  private int broadPhase = JEngine.BROADPHASE_DEFAULT;
+  private ForkJoinPool pool = null;
+  private int chunkSize = 8192;
+  private float sleepThreshold = 0f;
+  private int sleepSteps = 60;
+  private boolean wakeAllOnStep = false;
+  // particles removed since the last step, hashed into cells: the first in each cell, and for
+  // each the next one in the same cell
+  private final Long2IntOpenHashMap removedCells = new Long2IntOpenHashMap();
+  private int[] nextRemoved = new int[0];
+  // the halving of a parallel pass into chunks as a binary tree, node k splitting into nodes
+  // 2k + 1 and 2k + 2, kept from pass to pass so that passes do not allocate
+  private RangeTask[] rangeTasks = new RangeTask[0];
+  private boolean simd = SIMD_AVAILABLE;
+  private MortonOrder mortonOrder = new MortonOrder();
+  private int reorderInterval = 0;
+  private int stepsSinceReorder = 0;
+  private Particles solving;
+  // bound once so that the per-substep pair walk does not allocate a capturing lambda
+  private final PairConsumer resolver = (i, j) -> resolveCollision(solving, i, j);
+  private Metrics metrics = null;
+  private final int[] lutIndices = new int[64];
+  private BroadPhase measuredBroadPhase;
+  private long pairCount;
+  private long contactCount;
+  private final LongAdder parallelPairCount = new LongAdder();
+  private final LongAdder parallelContactCount = new LongAdder();
+  private final PairConsumer countingResolver = (i, j) -> {
+    pairCount++;
+    if (resolveCollision(solving, i, j))
+      contactCount++;
+  };
+  private final PairConsumer parallelCountingResolver = (i, j) -> {
+    parallelPairCount.increment();
+    if (resolveCollision(solving, i, j))
+      parallelContactCount.increment();
+  };
 
   public PhysicsWorld(float width, float height) {
     this.width = width;
     this.height = height;
+    removedCells.defaultReturnValue(-1);
   }
 
   public PhysicsWorld(float[] size) {
@@ -24,6 +90,7 @@ public class PhysicsWorld {
       throw new IllegalArgumentException();
     width = size[0];
     height = size[1];
+    removedCells.defaultReturnValue(-1);
   }
 
   public PhysicsWorld(int[] size) {
@@ -31,6 +98,7 @@ public class PhysicsWorld {
       throw new IllegalArgumentException();
     width = (float) size[0];
     height = (float) size[1];
+    removedCells.defaultReturnValue(-1);
   }
 
   public float width() {
@@ -45,107 +113,638 @@ public class PhysicsWorld {
     return new float[] {width / 2, height / 2};
   }
 
+  /**
+   * Whether a border keeps particles inside the world. Without one, escaped particles are never
+   * brought back and should be culled with {@link jengine.Scene#clean(PhysicsWorld)}.
+   */
+  public boolean hasBorder() {
+    return border != null;
+  }
+
+  /**
+   * Whether an object still overlaps the world rectangle.
+   */
   public boolean holds(SimObject o) {
-    float x = o.position().x;
-    float y = o.position().y;
-    float r = o.boundary();
-    return (x - r > width || x + r < 0 || y - r > height || y + r < 0);
+    return holds(o.x(), o.y(), o.boundary());
+  }
+
+  public boolean holds(Particles p, int i) {
+    return holds(p.x[i], p.y[i], p.radius[i]);
+  }
+
+  private boolean holds(float x, float y, float r) {
+    return !(x - r > width || x + r < 0 || y - r > height || y + r < 0);
+  }
+
+  /**
+   * @return a copy of the gravity vector
+   */
+  public float[] gravity() {
+    return new float[] {gravity[0], gravity[1]};
   }
 
+  /**
+   * Set the gravity vector. A change wakes every particle on the next step.
+   */
   public void setGravity(float[] gravity) {
     if (gravity.length != 2)
       throw new IllegalArgumentException("expected 2 components, got " + gravity.length);
+    if (gravity[0] != this.gravity[0] || gravity[1] != this.gravity[1])
+      wakeAllOnStep = true;
     this.gravity = gravity;
   }
 
+  /**
+   * Set the number of threads used to step the world. A value of 1 keeps every pass sequential;
+   * larger values run the per-particle passes as chunked parallel loops and walk the grid in
+   * parallel strips on a dedicated ForkJoinPool. Parallel collision solving needs a bounded grid,
+   * so worlds without a border solve collisions sequentially.
+   *
+   * @param parallelism the number of worker threads, at least 1
+   */
+  public void setParallelism(int parallelism) {
+    if (parallelism < 1)
+      throw new IllegalArgumentException("parallelism must be at least 1");
+    if (pool != null)
+      pool.shutdown();
+    pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+  }
+
+  public int parallelism() {
+    return pool == null ? 1 : pool.getParallelism();
+  }
+
+  /**
+   * Set the number of particles each worker handles at a time in the parallel per-particle
+   * passes. Passes over fewer particles than this run on the calling thread.
+   *
+   * @param chunkSize particles per chunk, at least 1
+   */
+  public void setChunkSize(int chunkSize) {
+    if (chunkSize < 1)
+      throw new IllegalArgumentException("chunk size must be at least 1");
+    this.chunkSize = chunkSize;
+  }
+
+  public int chunkSize() {
+    return chunkSize;
+  }
+
+  /**
+   * Choose how collision candidates are found. {@code BROADPHASE_UNIFORM} uses one grid sized to
+   * the largest particle, {@code BROADPHASE_HIERARCHICAL} a grid level per radius class,
+   * {@code BROADPHASE_SAP} sweep and prune along the x axis, and {@code BROADPHASE_AUTO} picks
+   * between them at every substep: sweep and prune while particles are sparse, and otherwise a grid
+   * chosen from the live radius spread. The hierarchical grid needs a bordered world, and only the
+   * uniform grid solves collisions in parallel.
+   *
+   * @param type one of the {@code JEngine.BROADPHASE_*} constants
+   */
+  public void setBroadPhase(int type) {
+    switch (type) {
+      case JEngine.BROADPHASE_UNIFORM:
+      case JEngine.BROADPHASE_HIERARCHICAL:
+      case JEngine.BROADPHASE_SAP:
+      case JEngine.BROADPHASE_AUTO:
+        this.broadPhase = type;
+        this.customBroadPhase = null;
+        break;
+      default:
+        throw new IllegalArgumentException("invalid broadphase type");
+    }
+  }
+
+  /**
+   * Find collision candidates with some other broadphase. It is given the world bounds whenever
+   * the border changes.
+   */
+  public void setBroadPhase(BroadPhase broadPhase) {
+    if (broadPhase == null)
+      throw new IllegalArgumentException("broadphase must not be null");
+    if (border == null)
+      broadPhase.clearBounds();
+    else
+      broadPhase.setBounds(0f, 0f, width, height);
+    this.customBroadPhase = broadPhase;
+  }
+
+  /**
+   * Choose whether gravity, integration and the rectangular border run as Vector API kernels or as
+   * scalar loops. SIMD is on by default whenever the JVM was started with
+   * {@code --add-modules jdk.incubator.vector}, and cannot be turned on otherwise.
+   *
+   * @return whether SIMD kernels are now in use
+   */
+  public boolean setSimd(boolean simd) {
+    this.simd = simd && SIMD_AVAILABLE;
+    return this.simd;
+  }
+
+  public boolean simd() {
+    return simd;
+  }
+
+  /**
+   * Sort particle storage along a Morton curve through the grid cells every some number of steps,
+   * so that particles near each other in space sit near each other in memory during collision
+   * solving. Handles, and so the objects of a Scene, stay valid across the reorder, but raw
+   * particle indices do not.
+   *
+   * @param steps the number of steps between reorders, or 0 to never reorder
+   */
+  public void setReorderInterval(int steps) {
+    if (steps < 0)
+      throw new IllegalArgumentException("reorder interval must not be negative");
+    this.reorderInterval = steps;
+    this.stepsSinceReorder = 0;
+  }
+
+  /**
+   * Time the phases of every step into some metrics, and count the candidate pairs and contacts
+   * of every collision solve. Without metrics, which is the default, nothing is measured.
+   *
+   * @param metrics the metrics to record into, or null to stop measuring
+   */
+  public void setMetrics(Metrics metrics) {
+    this.metrics = metrics;
+  }
+
+  public Metrics metrics() {
+    return metrics;
+  }
+
+  /**
+   * Choose whether the uniform grid is maintained incrementally between substeps, moving only the
+   * particles that changed cell, or sorted from scratch every substep. Incremental maintenance is
+   * on by default and falls back to a full rebuild by itself when too many particles move.
+   */
+  public void setIncrementalGrid(boolean incremental) {
+    grid.setIncremental(incremental);
+  }
+
+  /**
+   * Enable sleeping. A dynamic particle that moves less than {@code threshold} per substep for
+   * {@code steps} consecutive steps is put to sleep: it is skipped by integration and treated as
+   * static by collision response until a neighbour moving at over twice the threshold runs into
+   * it, until it is moved through {@link Particles}, or until a particle touching it is removed.
+   * A threshold of 0 disables sleeping and wakes every particle on the next step.
+   *
+   * @param threshold the largest per-substep displacement counted as still
+   * @param steps the number of consecutive still steps before a particle sleeps
+   */
+  public void setSleeping(float threshold, int steps) {
+    if (threshold < 0 || steps < 1)
+      throw new IllegalArgumentException("sleep threshold must not be negative and steps positive");
+    if (threshold == 0 && sleepThreshold > 0)
+      wakeAllOnStep = true;
+    this.sleepThreshold = threshold;
+    this.sleepSteps = steps;
+  }
+
+  public int border() {
+    return borderType;
+  }
+
   public void setBorder(int type) {
     switch (type) {
       case JEngine.BORDER_NONE:
         this.border = null;
+        grid.clearBounds();
+        hierarchicalGrid.clearBounds();
+        if (customBroadPhase != null)
+          customBroadPhase.clearBounds();
         break;
       case JEngine.BORDER_RECT:
         this.border = new RectangularBorder(width, height);
+        setBounds();
         break;
       case JEngine.BORDER_CIRCLE:
         this.border = new CirclularBorder(width / 2.5f, centre());
+        setBounds();
         break;
       default:
         throw new IllegalArgumentException("invalid border type");
     }
+    borderType = type;
+  }
+
+  private void setBounds() {
+    grid.setBounds(0f, 0f, width, height);
+    hierarchicalGrid.setBounds(0f, 0f, width, height);
+    if (customBroadPhase != null)
+      customBroadPhase.setBounds(0f, 0f, width, height);
   }
 
-  public void step(List<? extends SimObject> objects, float dt) {
-    step(objects, dt, 1);
+  public void step(Particles particles, float dt) {
+    step(particles, dt, 1);
   }
 
-  public void step(List<? extends SimObject> objects, float dt, int subSteps) {
+  /**
+   * Advance the world by {@code dt}, split into some number of substeps. Per-particle work is
+   * fused into one pass between collision solves: the border constraint closing one substep runs
+   * together with gravity and integration opening the next, so particle data is streamed through
+   * cache once per substep rather than three times.
+   */
+  public void step(Particles particles, float dt, int subSteps) {
     if (dt < 0 || subSteps <= 0)
       throw new IllegalArgumentException();
     float subdt = dt / (float) subSteps;
-    for (int i = 0; i < subSteps; i++) {
-      applyGravity(objects);
-      updateObjects(objects, subdt);
-      solveCollisionGrid(objects);
-      applyConstraints(objects);
+    long stepStart = metrics != null ? metrics.beginStep() : 0L;
+    if (wakeAllOnStep) {
+      particles.wakeAll();
+      wakeAllOnStep = false;
+    } else if (particles.removedCount > 0 && sleepThreshold > 0) {
+      wakeAroundRemoved(particles);
+    }
+    particles.removedCount = 0;
+    if (reorderInterval > 0 && ++stepsSinceReorder >= reorderInterval) {
+      long start = mark();
+      particles.reorder(mortonOrder.order(particles, grid.cellSize()));
+      stepsSinceReorder = 0;
+      measure(Metrics.PHASE_REORDER, start);
+    }
+    particles.markStepStart();
+    long start = mark();
+    runPass(PASS_INTEGRATE, particles, subdt);
+    measure(Metrics.PHASE_INTEGRATE, start);
+    for (int i = 1; i < subSteps; i++) {
+      solveCollisionGrid(particles);
+      start = mark();
+      runPass(PASS_CONSTRAIN_INTEGRATE, particles, subdt);
+      measure(Metrics.PHASE_INTEGRATE, start);
+    }
+    solveCollisionGrid(particles);
+    start = mark();
+    runPass(PASS_CONSTRAIN, particles, subdt);
+    measure(Metrics.PHASE_CONSTRAIN, start);
+    if (metrics != null) {
+      metrics.gauge(Metrics.GAUGE_PARTICLES, particles.size);
+      metrics.gauge(Metrics.GAUGE_OCCUPIED_CELLS, measuredBroadPhase.occupiedCells());
+      metrics.endStep(stepStart);
     }
   }
 
-  private void applyGravity(List<? extends SimObject> objects) {
-    for (SimObject x : objects) {
-      if (x instanceof DynamicAtom atom && atom != null)
-        atom.accelerate(gravity);
+  /**
+   * Colour every particle from a lookup table by its speed, taken as the distance it moved over
+   * the last substep, in one pass over the store. Speeds from 0 to {@code maxDisplacement} are
+   * spread evenly over the table and faster particles take its last entry. The colours are
+   * derived from positions, so unlike {@link Particles#setColour} this leaves the store's layout
+   * version alone.
+   *
+   * @param lut packed 0xRRGGBB colours from slowest to fastest
+   */
+  public void colourBySpeed(Particles p, int[] lut, float maxDisplacement) {
+    if (lut.length == 0 || !(maxDisplacement > 0))
+      throw new IllegalArgumentException("need a colour table and a positive top speed");
+    float scale = (lut.length - 1) / maxDisplacement;
+    int last = lut.length - 1;
+    int i = 0;
+    if (simd)
+      i = SimdKernels.colourBySpeed(p, lut, scale, lutIndices, 0, p.size);
+    for (; i < p.size; i++) {
+      float vx = p.x[i] - p.prevX[i];
+      float vy = p.y[i] - p.prevY[i];
+      float speed = (float) Math.sqrt(vx * vx + vy * vy);
+      p.colour[i] = lut[(int) Math.min(last, speed * scale)];
     }
   }
 
-  private void updateObjects(List<? extends SimObject> objects, float dt) {
-    for (SimObject x : objects) {
-      if (x instanceof DynamicAtom atom && atom != null) {
-        Vector vel = atom.velocity();
-        atom.previousPosition().set(atom.position());
+  private long mark() {
+    return metrics != null ? System.nanoTime() : 0L;
+  }
+
+  private void measure(int phase, long start) {
+    if (metrics != null)
+      metrics.record(phase, System.nanoTime() - start);
+  }
+
+  private void runPass(int pass, Particles p, float dt) {
+    if (pool == null || p.size <= chunkSize)
+      runRange(pass, p, dt, 0, p.size);
+    else
+      pool.invoke(rangeTasks(p.size).start(pass, p, dt, 0, p.size));
+  }
+
+  private RangeTask rangeTasks(int n) {
+    int leaves = 1;
+    while ((long) leaves * chunkSize < n) {
+      leaves *= 2;
+    }
+    if (rangeTasks.length < leaves * 2 - 1) {
+      int old = rangeTasks.length;
+      rangeTasks = Arrays.copyOf(rangeTasks, leaves * 2 - 1);
+      for (int k = old; k < rangeTasks.length; k++) {
+        rangeTasks[k] = new RangeTask(k);
+      }
+    }
+    return rangeTasks[0];
+  }
+
+  private void runRange(int pass, Particles p, float dt, int from, int to) {
+    switch (pass) {
+      case PASS_INTEGRATE -> integrate(p, dt, from, to, null);
+      case PASS_CONSTRAIN -> {
+        applyConstraints(p, from, to);
+        if (sleepThreshold > 0)
+          updateSleep(p, from, to);
+      }
+      case PASS_CONSTRAIN_INTEGRATE -> integrate(p, dt, from, to, border);
+    }
+  }
+
+  /*
+   * Gravity and Verlet integration for particles [from, to), optionally applying a constraint to
+   * each particle first.
+   */
+  private void integrate(Particles p, float dt, int from, int to, Constraint constraint) {
+    float dt2 = dt * dt;
+    float gx = gravity[0];
+    float gy = gravity[1];
+    int i = from;
+    if (simd && constraint == null) {
+      i = SimdKernels.integrate(p, gx, gy, dt2, from, to);
+    } else if (simd && constraint instanceof RectangularBorder rect) {
+      i = SimdKernels.constrainRectIntegrate(p, rect.width, rect.height, damping, gx, gy, dt2,
+          from, to);
+    }
+    // the scalar loop covers whatever the kernels left over
+    for (; i < to; i++) {
+      if (constraint != null)
+        constraint.applyConstraint(p, i);
+      if ((p.flags[i] & AWAKE_MASK) == Particles.DYNAMIC) {
+        float x = p.x[i];
+        float y = p.y[i];
+        p.ax[i] = gx;
+        p.ay[i] = gy;
         // x1 = x0 + v + a * dt * dt
-        atom.position().add(vel).add(Vector.scale(atom.acceleration(), dt * dt));
+        p.x[i] = x + (x - p.prevX[i]) + gx * dt2;
+        p.y[i] = y + (y - p.prevY[i]) + gy * dt2;
+        p.prevX[i] = x;
+        p.prevY[i] = y;
       }
     }
   }
 
-  private void solveCollisionGrid(List<? extends SimObject> objects) {
-    grid.rebuild(objects);
-    grid.forEach((i, j) -> {
-      SimObject o1 = objects.get(i);
-      SimObject o2 = objects.get(j);
-      resolveCollision(o1, o2);
-    });
+  /*
+   * Splits a per-particle pass into chunks of at most chunkSize particles.
+   */
+  private class RangeTask extends RecursiveAction {
+    private final int node;
+    private int pass;
+    private Particles particles;
+    private float dt;
+    private int from;
+    private int to;
+
+    RangeTask(int node) {
+      this.node = node;
+    }
+
+    RangeTask start(int pass, Particles particles, float dt, int from, int to) {
+      this.pass = pass;
+      this.particles = particles;
+      this.dt = dt;
+      this.from = from;
+      this.to = to;
+      reinitialize();
+      return this;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= chunkSize) {
+        runRange(pass, particles, dt, from, to);
+        return;
+      }
+      int mid = (from + to) >>> 1;
+      invokeAll(rangeTasks[node * 2 + 1].start(pass, particles, dt, from, mid),
+          rangeTasks[node * 2 + 2].start(pass, particles, dt, mid, to));
+    }
+  }
+
+  private void solveCollisionGrid(Particles p) {
+    solving = p;
+    BroadPhase broadPhase = selectBroadPhase(p);
+    if (metrics != null) {
+      solveMeasured(broadPhase, p);
+    } else {
+      broadPhase.rebuild(p);
+      if (pool != null)
+        broadPhase.forEachParallel(resolver, pool);
+      else
+        broadPhase.forEach(resolver);
+    }
+    solving = null;
+  }
+
+  /*
+   * A collision solve with the rebuild and pair walk timed apart and every candidate pair and
+   * contact counted. Counts go to plain fields on one thread and to adders across a pool.
+   */
+  private void solveMeasured(BroadPhase broadPhase, Particles p) {
+    long start = System.nanoTime();
+    broadPhase.rebuild(p);
+    long rebuilt = System.nanoTime();
+    metrics.record(Metrics.PHASE_BROADPHASE, rebuilt - start);
+    if (pool != null) {
+      broadPhase.forEachParallel(parallelCountingResolver, pool);
+      metrics.record(Metrics.PHASE_COLLIDE, System.nanoTime() - rebuilt);
+      metrics.count(Metrics.COUNTER_PAIRS, parallelPairCount.sumThenReset());
+      metrics.count(Metrics.COUNTER_CONTACTS, parallelContactCount.sumThenReset());
+    } else {
+      pairCount = 0;
+      contactCount = 0;
+      broadPhase.forEach(countingResolver);
+      metrics.record(Metrics.PHASE_COLLIDE, System.nanoTime() - rebuilt);
+      metrics.count(Metrics.COUNTER_PAIRS, pairCount);
+      metrics.count(Metrics.COUNTER_CONTACTS, contactCount);
+    }
+    measuredBroadPhase = broadPhase;
   }
 
-  private boolean resolveCollision(SimObject o1, SimObject o2) {
-    if (o1 == null || o2 == null || o1 == o2)
+  private BroadPhase selectBroadPhase(Particles p) {
+    if (customBroadPhase != null)
+      return customBroadPhase;
+    switch (broadPhase) {
+      case JEngine.BROADPHASE_UNIFORM:
+        return grid;
+      case JEngine.BROADPHASE_SAP:
+        return sweepAndPrune;
+      case JEngine.BROADPHASE_HIERARCHICAL:
+        return hierarchicalGrid.bounded() ? hierarchicalGrid : grid;
+    }
+    int n = p.size;
+    if (n == 0)
+      return grid;
+    float[] px = p.x;
+    float[] py = p.y;
+    float[] pr = p.radius;
+    float minRadius = Float.MAX_VALUE;
+    float maxRadius = 0f;
+    float minX = Float.MAX_VALUE;
+    float minY = Float.MAX_VALUE;
+    float maxX = -Float.MAX_VALUE;
+    float maxY = -Float.MAX_VALUE;
+    for (int i = 0; i < n; i++) {
+      minRadius = Math.min(minRadius, pr[i]);
+      maxRadius = Math.max(maxRadius, pr[i]);
+      minX = Math.min(minX, px[i]);
+      maxX = Math.max(maxX, px[i]);
+      minY = Math.min(minY, py[i]);
+      maxY = Math.max(maxY, py[i]);
+    }
+    // a bounded grid pays for every cell of the world, an unbounded one for the occupied extent
+    float area = border != null ? width * height : (maxX - minX) * (maxY - minY);
+    float cellSize = Math.max(grid.cellSize(), maxRadius * 2f);
+    if (n < area / (cellSize * cellSize) * AUTO_SPARSE_DENSITY)
+      return sweepAndPrune;
+    if (hierarchicalGrid.bounded() && maxRadius >= minRadius * AUTO_RADIUS_SPREAD)
+      return hierarchicalGrid;
+    return grid;
+  }
+
+  private boolean resolveCollision(Particles p, int i, int j) {
+    if (i == j)
+      return false;
+    boolean awakeI = (p.flags[i] & AWAKE_MASK) == Particles.DYNAMIC;
+    boolean awakeJ = (p.flags[j] & AWAKE_MASK) == Particles.DYNAMIC;
+    if (!awakeI && !awakeJ)
       return false;
-    Vector delta = Vector.sub(o2.position(), o1.position());
-    float distance = delta.magnitude();
-    float overlap = (o1.boundary() + o2.boundary()) - distance;
+    float dx = p.x[j] - p.x[i];
+    float dy = p.y[j] - p.y[i];
+    float distance = (float) Math.sqrt(dx * dx + dy * dy);
+    float overlap = (p.radius[i] + p.radius[j]) - distance;
     if (overlap > 0) {
-      Vector correction = delta.normalise().scale(overlap / 2f);
-      if (o1 instanceof DynamicAtom)
-        o1.position().sub(correction);
-      if (o2 instanceof DynamicAtom)
-        o2.position().add(correction);
+      if (!awakeI && awakeJ && wakesOnContact(p, i, j))
+        awakeI = true;
+      else if (!awakeJ && awakeI && wakesOnContact(p, j, i))
+        awakeJ = true;
+      float cx = 0f;
+      float cy = 0f;
+      if (distance != 0) {
+        // a sleeper stays put like a static particle, so the awake one takes the whole push
+        float s = (awakeI && awakeJ ? overlap / 2f : overlap) / distance;
+        cx = dx * s;
+        cy = dy * s;
+      }
+      if (awakeI) {
+        p.x[i] -= cx;
+        p.y[i] -= cy;
+      }
+      if (awakeJ) {
+        p.x[j] += cx;
+        p.y[j] += cy;
+      }
       return true;
     }
     return false;
   }
 
-  private void applyConstraints(List<? extends SimObject> objects) {
-    for (SimObject o : objects) {
-      if (border != null) {
-        border.applyConstraint(o);
+  /*
+   * Wake the sleeping particle i if the particle touching it is moving well over the sleep
+   * threshold. A slow neighbour resting on a sleeper leaves it asleep.
+   */
+  private boolean wakesOnContact(Particles p, int i, int other) {
+    if ((p.flags[i] & Particles.SLEEPING) == 0)
+      return false;
+    float vx = p.x[other] - p.prevX[other];
+    float vy = p.y[other] - p.prevY[other];
+    float wake = sleepThreshold * WAKE_FACTOR;
+    if (vx * vx + vy * vy <= wake * wake)
+      return false;
+    p.wake(i);
+    return true;
+  }
+
+  /*
+   * Wake the sleepers touching a particle removed since the last step, since they may have been
+   * resting on it. The removed particles are hashed into cells at least as wide as any contact,
+   * so one pass over the store finds every sleeper's removed neighbours in the 3x3 cells around
+   * it.
+   */
+  private void wakeAroundRemoved(Particles p) {
+    int removed = p.removedCount;
+    float reach = 0f;
+    for (int k = 0; k < removed; k++) {
+      reach = Math.max(reach, p.removedRadius[k]);
+    }
+    float maxRadius = 0f;
+    for (int i = 0; i < p.size; i++) {
+      maxRadius = Math.max(maxRadius, p.radius[i]);
+    }
+    float cellSize = (reach + maxRadius) * TOUCH_SLACK;
+    if (!(cellSize > 0))
+      return;
+    if (nextRemoved.length < removed)
+      nextRemoved = new int[Math.max(removed, nextRemoved.length * 2)];
+    removedCells.clear();
+    for (int k = 0; k < removed; k++) {
+      long cell = cellKey(cellOf(p.removedX[k], cellSize), cellOf(p.removedY[k], cellSize));
+      nextRemoved[k] = removedCells.put(cell, k);
+    }
+    for (int i = 0; i < p.size; i++) {
+      if ((p.flags[i] & Particles.SLEEPING) != 0 && touchesRemoved(p, i, cellSize))
+        p.wake(i);
+    }
+  }
+
+  private boolean touchesRemoved(Particles p, int i, float cellSize) {
+    int cx = cellOf(p.x[i], cellSize);
+    int cy = cellOf(p.y[i], cellSize);
+    for (int ox = -1; ox <= 1; ox++) {
+      for (int oy = -1; oy <= 1; oy++) {
+        for (int k = removedCells.get(cellKey(cx + ox, cy + oy)); k >= 0; k = nextRemoved[k]) {
+          float dx = p.x[i] - p.removedX[k];
+          float dy = p.y[i] - p.removedY[k];
+          float touch = (p.radius[i] + p.removedRadius[k]) * TOUCH_SLACK;
+          if (dx * dx + dy * dy <= touch * touch)
+            return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static int cellOf(float position, float cellSize) {
+    return (int) Math.floor(position / cellSize);
+  }
+
+  private static long cellKey(int cx, int cy) {
+    return (long) cx << 32 | (cy & 0xFFFFFFFFL);
+  }
+
+  private void updateSleep(Particles p, int from, int to) {
+    float limit = sleepThreshold * sleepThreshold;
+    for (int i = from; i < to; i++) {
+      if ((p.flags[i] & AWAKE_MASK) != Particles.DYNAMIC)
+        continue;
+      float vx = p.x[i] - p.prevX[i];
+      float vy = p.y[i] - p.prevY[i];
+      if (vx * vx + vy * vy >= limit) {
+        p.still[i] = 0;
+      } else if (++p.still[i] >= sleepSteps) {
+        p.flags[i] |= Particles.SLEEPING;
+        p.prevX[i] = p.x[i];
+        p.prevY[i] = p.y[i];
       }
     }
   }
 
+  private void applyConstraints(Particles p, int from, int to) {
+    if (border == null)
+      return;
+    int i = from;
+    if (simd && border instanceof RectangularBorder rect)
+      i = SimdKernels.constrainRect(p, rect.width, rect.height, damping, from, to);
+    for (; i < to; i++) {
+      border.applyConstraint(p, i);
+    }
+  }
+
   private abstract class Constraint {
-    abstract void applyConstraint(SimObject o);
+    abstract void applyConstraint(Particles p, int i);
 
-    abstract boolean inBounds(SimObject o);
+    abstract boolean inBounds(Particles p, int i);
 
     abstract Vector centre();
   }
@@ -159,10 +758,10 @@ public class PhysicsWorld {
       this.height = height;
     }
 
-    boolean inBounds(SimObject o) {
-      float x = o.position().x;
-      float y = o.position().y;
-      float r = o.boundary();
+    boolean inBounds(Particles p, int i) {
+      float x = p.x[i];
+      float y = p.y[i];
+      float r = p.radius[i];
       return (x + r > width || x - r < 0 || y + r > height || y - r < 0);
     }
 
@@ -170,32 +769,26 @@ public class PhysicsWorld {
       return new Vector(width / 2, height / 2);
     }
 
-    void applyConstraint(SimObject o) {
-      if (o instanceof DynamicAtom atom && atom != null) {
-        float x = atom.position().x;
-        float y = atom.position().y;
-        float r = atom.radius();
-        if (x + r > width) {
-          Vector vel = atom.velocity();
-          atom.position().set(width - r, y);
-          vel.x *= -damping;
-          atom.previousPosition().set(Vector.sub(atom.position(), vel));
-        } else if (x - r < 0) {
-          Vector vel = atom.velocity();
-          atom.position().set(r, y);
-          vel.x *= -damping;
-          atom.previousPosition().set(Vector.sub(atom.position(), vel));
-        } else if (y + r > height) {
-          Vector vel = atom.velocity();
-          atom.position().set(x, height - r);
-          vel.y *= -damping;
-          atom.previousPosition().set(Vector.sub(atom.position(), vel));
-        } else if (y - r < 0) {
-          Vector vel = atom.velocity();
-          atom.position().set(x, r);
-          vel.y *= -damping;
-          atom.previousPosition().set(Vector.sub(atom.position(), vel));
-        }
+    void applyConstraint(Particles p, int i) {
+      if ((p.flags[i] & AWAKE_MASK) != Particles.DYNAMIC)
+        return;
+      float x = p.x[i];
+      float y = p.y[i];
+      float r = p.radius[i];
+      float vx = x - p.prevX[i];
+      float vy = y - p.prevY[i];
+      if (x + r > width) {
+        p.x[i] = width - r;
+        p.prevX[i] = p.x[i] + vx * damping;
+      } else if (x - r < 0) {
+        p.x[i] = r;
+        p.prevX[i] = p.x[i] + vx * damping;
+      } else if (y + r > height) {
+        p.y[i] = height - r;
+        p.prevY[i] = p.y[i] + vy * damping;
+      } else if (y - r < 0) {
+        p.y[i] = r;
+        p.prevY[i] = p.y[i] + vy * damping;
       }
     }
   }
@@ -211,22 +804,25 @@ public class PhysicsWorld {
       this.centre = new Vector(centre);
     }
 
-    boolean inBounds(SimObject o) {
-      Vector origin = Vector.sub(o.position(), centre);
-      return (origin.magnitude() > radius - o.boundary());
+    boolean inBounds(Particles p, int i) {
+      float dx = p.x[i] - centre.x;
+      float dy = p.y[i] - centre.y;
+      return (Math.sqrt(dx * dx + dy * dy) > radius - p.radius[i]);
     }
 
     Vector centre() {
       return centre;
     }
 
-    void applyConstraint(SimObject o) {
-      Vector origin = Vector.sub(o.position(), centre);
-      float distance = origin.magnitude();
-      if (distance > radius - o.boundary()) {
-        origin.normalise();
-        origin.scale(radius - o.boundary());
-        o.position().set(Vector.add(centre, origin));
+    void applyConstraint(Particles p, int i) {
+      float dx = p.x[i] - centre.x;
+      float dy = p.y[i] - centre.y;
+      float distance = (float) Math.sqrt(dx * dx + dy * dy);
+      float limit = radius - p.radius[i];
+      if (distance > limit && distance != 0) {
+        float s = limit / distance;
+        p.x[i] = centre.x + dx * s;
+        p.y[i] = centre.y + dy * s;
       }
     }
   }
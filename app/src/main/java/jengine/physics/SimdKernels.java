@@ -0,0 +1,150 @@
+package jengine.physics;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vector API versions of the per-particle passes of {@link PhysicsWorld}, working on the arrays of
+ * a {@link Particles} store a full SIMD register at a time. Each kernel handles as many whole
+ * vectors as fit in {@code [from, to)} and returns the first index it did not touch, so the caller
+ * finishes the tail with its scalar loop.
+ *
+ * PhysicsWorld only calls in here after checking that the incubator module is present, so the class
+ * is never loaded on a JVM started without {@code --add-modules jdk.incubator.vector}.
+ */
+final class SimdKernels {
+  private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+  private static final VectorSpecies<Integer> INTS =
+      VectorSpecies.of(int.class, FLOATS.vectorShape());
+  // wide enough to hold one flag per float lane
+  private static final VectorSpecies<Byte> FLAGS =
+      FLOATS.length() <= 8 ? ByteVector.SPECIES_64 : ByteVector.SPECIES_128;
+  // lanes covered by one step; the flag load may be wider than the float vectors
+  private static final int STEP = FLOATS.length();
+  private static final int SPAN = Math.max(FLOATS.length(), FLAGS.length());
+
+  private SimdKernels() {}
+
+  /**
+   * Gravity and Verlet integration of awake particles.
+   */
+  static int integrate(Particles p, float gx, float gy, float dt2, int from, int to) {
+    int i = from;
+    for (; i + SPAN <= to; i += STEP) {
+      integrate(p, awake(p.flags, i), gx, gy, dt2, i);
+    }
+    return i;
+  }
+
+  /**
+   * The rectangular border of awake particles.
+   */
+  static int constrainRect(Particles p, float width, float height, float damping, int from,
+      int to) {
+    int i = from;
+    for (; i + SPAN <= to; i += STEP) {
+      constrainRect(p, width, height, damping, i);
+    }
+    return i;
+  }
+
+  /**
+   * The rectangular border followed by gravity and Verlet integration, for the fused pass between
+   * two collision solves.
+   */
+  static int constrainRectIntegrate(Particles p, float width, float height, float damping,
+      float gx, float gy, float dt2, int from, int to) {
+    int i = from;
+    for (; i + SPAN <= to; i += STEP) {
+      constrainRect(p, width, height, damping, i);
+      integrate(p, awake(p.flags, i), gx, gy, dt2, i);
+    }
+    return i;
+  }
+
+  /**
+   * The colour of each particle from a lookup table indexed by its speed.
+   *
+   * @param indices scratch space for at least one vector of table indices
+   */
+  static int colourBySpeed(Particles p, int[] lut, float scale, int[] indices, int from,
+      int to) {
+    float last = lut.length - 1;
+    int i = from;
+    for (; i + STEP <= to; i += STEP) {
+      FloatVector vx = FloatVector.fromArray(FLOATS, p.x, i)
+          .sub(FloatVector.fromArray(FLOATS, p.prevX, i));
+      FloatVector vy = FloatVector.fromArray(FLOATS, p.y, i)
+          .sub(FloatVector.fromArray(FLOATS, p.prevY, i));
+      FloatVector speed = vx.mul(vx).add(vy.mul(vy)).sqrt();
+      ((IntVector) speed.mul(scale).min(last).convert(VectorOperators.F2I, 0))
+          .intoArray(indices, 0);
+      IntVector.fromArray(INTS, lut, 0, indices, 0).intoArray(p.colour, i);
+    }
+    return i;
+  }
+
+  private static void integrate(Particles p, VectorMask<Float> awake, float gx, float gy,
+      float dt2, int i) {
+    FloatVector x = FloatVector.fromArray(FLOATS, p.x, i);
+    FloatVector y = FloatVector.fromArray(FLOATS, p.y, i);
+    FloatVector prevX = FloatVector.fromArray(FLOATS, p.prevX, i);
+    FloatVector prevY = FloatVector.fromArray(FLOATS, p.prevY, i);
+    // x1 = x0 + v + a * dt * dt
+    x.blend(x.add(x.sub(prevX)).add(gx * dt2), awake).intoArray(p.x, i);
+    y.blend(y.add(y.sub(prevY)).add(gy * dt2), awake).intoArray(p.y, i);
+    prevX.blend(x, awake).intoArray(p.prevX, i);
+    prevY.blend(y, awake).intoArray(p.prevY, i);
+    FloatVector.fromArray(FLOATS, p.ax, i).blend(gx, awake).intoArray(p.ax, i);
+    FloatVector.fromArray(FLOATS, p.ay, i).blend(gy, awake).intoArray(p.ay, i);
+  }
+
+  /*
+   * Like the scalar border, each particle is pushed back across at most one edge per pass, tested
+   * in the order right, left, bottom, top; each edge's mask excludes the lanes an earlier edge
+   * took.
+   *
+   * This is too big for the JIT to inline, so it finds the awake lanes itself: a mask passed in
+   * would be boxed on every call.
+   */
+  private static void constrainRect(Particles p, float width, float height, float damping,
+      int i) {
+    VectorMask<Float> awake = awake(p.flags, i);
+    FloatVector x = FloatVector.fromArray(FLOATS, p.x, i);
+    FloatVector y = FloatVector.fromArray(FLOATS, p.y, i);
+    FloatVector r = FloatVector.fromArray(FLOATS, p.radius, i);
+    VectorMask<Float> right = x.add(r).compare(VectorOperators.GT, width).and(awake);
+    VectorMask<Float> taken = right;
+    VectorMask<Float> left = x.sub(r).compare(VectorOperators.LT, 0f).and(awake).andNot(taken);
+    taken = taken.or(left);
+    VectorMask<Float> bottom =
+        y.add(r).compare(VectorOperators.GT, height).and(awake).andNot(taken);
+    taken = taken.or(bottom);
+    VectorMask<Float> top = y.sub(r).compare(VectorOperators.LT, 0f).and(awake).andNot(taken);
+    if (!taken.or(top).anyTrue())
+      return;
+    FloatVector prevX = FloatVector.fromArray(FLOATS, p.prevX, i);
+    FloatVector prevY = FloatVector.fromArray(FLOATS, p.prevY, i);
+    FloatVector vx = x.sub(prevX);
+    FloatVector vy = y.sub(prevY);
+    FloatVector clampedX = x.blend(r.neg().add(width), right).blend(r, left);
+    FloatVector clampedY = y.blend(r.neg().add(height), bottom).blend(r, top);
+    VectorMask<Float> onX = right.or(left);
+    VectorMask<Float> onY = bottom.or(top);
+    clampedX.intoArray(p.x, i);
+    clampedY.intoArray(p.y, i);
+    prevX.blend(clampedX.add(vx.mul(damping)), onX).intoArray(p.prevX, i);
+    prevY.blend(clampedY.add(vy.mul(damping)), onY).intoArray(p.prevY, i);
+  }
+
+  private static VectorMask<Float> awake(byte[] flags, int i) {
+    ByteVector state = ByteVector.fromArray(FLAGS, flags, i)
+        .and((byte) (Particles.DYNAMIC | Particles.SLEEPING));
+    FloatVector lanes = (FloatVector) state.convertShape(VectorOperators.B2F, FLOATS, 0);
+    return lanes.compare(VectorOperators.EQ, Particles.DYNAMIC);
+  }
+}
@@ -0,0 +1,62 @@
+package jengine.physics;
+
+/**
+ * A copy of what drawing needs from a particle store: the position, radius and colour of every
+ * particle at the end of some physics step. Snapshots let the renderer read particles while
+ * another thread steps the store; see {@link SnapshotBuffer}.
+ */
+public class Snapshot {
+  private float[] x = new float[0];
+  private float[] y = new float[0];
+  private float[] radius = new float[0];
+  // packed 0xRRGGBB
+  private int[] colour = new int[0];
+  private int size = 0;
+  private long step = 0;
+
+  /**
+   * Copy the particles of a store into this snapshot, growing it if need be.
+   *
+   * @param step the number of physics steps run so far, for telling snapshots apart
+   */
+  public void capture(Particles p, long step) {
+    int n = p.size;
+    if (x.length < n) {
+      int capacity = Math.max(n, x.length * 2);
+      x = new float[capacity];
+      y = new float[capacity];
+      radius = new float[capacity];
+      colour = new int[capacity];
+    }
+    System.arraycopy(p.x, 0, x, 0, n);
+    System.arraycopy(p.y, 0, y, 0, n);
+    System.arraycopy(p.radius, 0, radius, 0, n);
+    System.arraycopy(p.colour, 0, colour, 0, n);
+    size = n;
+    this.step = step;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public long step() {
+    return step;
+  }
+
+  public float x(int i) {
+    return x[i];
+  }
+
+  public float y(int i) {
+    return y[i];
+  }
+
+  public float radius(int i) {
+    return radius[i];
+  }
+
+  public int colour(int i) {
+    return colour[i];
+  }
+}
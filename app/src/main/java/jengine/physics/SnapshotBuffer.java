@@ -0,0 +1,49 @@
+package jengine.physics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands snapshots from one writer thread to one reader thread without locks, so that neither
+ * ever waits for the other. Of three snapshots, the writer fills one, the reader draws from
+ * another, and the third holds the latest one published; publishing and taking swap a snapshot
+ * with the third in a single atomic exchange. The reader always gets the newest published
+ * snapshot, and snapshots it never took are overwritten.
+ */
+public class SnapshotBuffer {
+  // set on the shared slot when the writer has published it since the reader last took it
+  private static final int FRESH = 4;
+  private static final int SLOT = 3;
+
+  private final Snapshot[] snapshots = {new Snapshot(), new Snapshot(), new Snapshot()};
+  private final AtomicInteger shared = new AtomicInteger(1);
+  // owned by the writer and the reader respectively
+  private int back = 0;
+  private int front = 2;
+
+  /**
+   * Get the snapshot for the writer to fill. Only the writer thread may call this.
+   */
+  public Snapshot back() {
+    return snapshots[back];
+  }
+
+  /**
+   * Publish the snapshot last returned by {@link #back()}, and start filling another. Only the
+   * writer thread may call this.
+   */
+  public void publish() {
+    back = shared.getAndSet(back | FRESH) & SLOT;
+  }
+
+  /**
+   * Get the newest published snapshot. It stays unchanged until the next call, even while the
+   * writer publishes more. Only the reader thread may call this.
+   *
+   * @return the newest snapshot, or an empty one if none has been published yet
+   */
+  public Snapshot latest() {
+    if ((shared.get() & FRESH) != 0)
+      front = shared.getAndSet(front) & SLOT;
+    return snapshots[front];
+  }
+}
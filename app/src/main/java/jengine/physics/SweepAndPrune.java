@@ -0,0 +1,177 @@
+package jengine.physics;
+
+import java.util.Arrays;
+
+/**
+ * Sweep-and-prune broadphase. Particles are kept sorted by the left edge of their bounding box,
+ * so the particles whose x-extent overlaps a given one are exactly those that follow it in order
+ * until one starts beyond its right edge; of those, only the ones whose y-extent also overlaps are
+ * reported.
+ *
+ * The order is kept between rebuilds and repaired with an insertion sort, which is close to linear
+ * while particles only move a little between substeps. If the repair takes too many shifts, as
+ * after a teleport or on the first rebuild, the rest is sorted from scratch. Needs no bounds, and
+ * does well where particles are sparse and a grid would be mostly empty cells.
+ */
+class SweepAndPrune implements BroadPhase {
+  // shifts allowed per particle before the insertion sort gives way to a full sort
+  private static final int MAX_SHIFTS_PER_OBJECT = 8;
+  // the full sort is a radix sort on the left edge, a byte at a time
+  private static final int RADIX_BITS = 8;
+  private static final int RADIX = 1 << RADIX_BITS;
+
+  private Particles particles;
+  private int size = 0;
+  // particle indices by left edge, and the bounding box of each, in the same order
+  private int[] order = new int[0];
+  private float[] minX = new float[0];
+  private float[] maxX = new float[0];
+  private float[] minY = new float[0];
+  private float[] maxY = new float[0];
+  private long[] sortKeys = new long[0];
+  private long[] spareKeys = new long[0];
+  private final int[] digitCount = new int[RADIX];
+
+  @Override
+  public void setBounds(float minX, float minY, float maxX, float maxY) {}
+
+  @Override
+  public void clearBounds() {}
+
+  @Override
+  public void rebuild(Particles particles) {
+    int n = particles.size;
+    if (order.length < n) {
+      int capacity = particles.capacity();
+      order = Arrays.copyOf(order, capacity);
+      minX = new float[capacity];
+      maxX = new float[capacity];
+      minY = new float[capacity];
+      maxY = new float[capacity];
+    }
+    if (particles != this.particles) {
+      this.particles = particles;
+      size = 0;
+    }
+    if (n != size) {
+      // keep the order of the indices still in the store and append the new ones
+      int kept = 0;
+      for (int k = 0; k < size; k++) {
+        if (order[k] < n)
+          order[kept++] = order[k];
+      }
+      for (int i = size; i < n; i++) {
+        order[kept++] = i;
+      }
+      size = n;
+    }
+
+    float[] px = particles.x;
+    float[] py = particles.y;
+    float[] pr = particles.radius;
+    for (int k = 0; k < n; k++) {
+      int i = order[k];
+      minX[k] = px[i] - pr[i];
+    }
+    if (!insertionSort(n))
+      fullSort(n);
+    for (int k = 0; k < n; k++) {
+      int i = order[k];
+      maxX[k] = px[i] + pr[i];
+      minY[k] = py[i] - pr[i];
+      maxY[k] = py[i] + pr[i];
+    }
+  }
+
+  @Override
+  public void forEach(PairConsumer consumer) {
+    int n = size;
+    for (int k = 0; k < n; k++) {
+      int i = order[k];
+      float right = maxX[k];
+      float top = minY[k];
+      float bottom = maxY[k];
+      for (int m = k + 1; m < n && minX[m] <= right; m++) {
+        if (minY[m] <= bottom && maxY[m] >= top)
+          consumer.accept(i, order[m]);
+      }
+    }
+  }
+
+  /*
+   * Sort order and minX together by minX. Returns false, leaving both partly sorted but still
+   * paired up, once the shift budget runs out.
+   */
+  private boolean insertionSort(int n) {
+    long budget = (long) n * MAX_SHIFTS_PER_OBJECT;
+    for (int k = 1; k < n; k++) {
+      float key = minX[k];
+      if (minX[k - 1] <= key)
+        continue;
+      int i = order[k];
+      int j = k - 1;
+      while (j >= 0 && minX[j] > key) {
+        minX[j + 1] = minX[j];
+        order[j + 1] = order[j];
+        j--;
+        budget--;
+      }
+      minX[j + 1] = key;
+      order[j + 1] = i;
+      if (budget < 0)
+        return false;
+    }
+    return true;
+  }
+
+  /*
+   * Sort by left edge from scratch, with an LSD radix sort over the edge's bits instead of
+   * Arrays.sort, which allocates a scratch array whenever it finds the keys partly sorted.
+   */
+  private void fullSort(int n) {
+    if (sortKeys.length < n) {
+      sortKeys = new long[order.length];
+      spareKeys = new long[order.length];
+    }
+    long[] keys = sortKeys;
+    for (int k = 0; k < n; k++) {
+      // the flipped bits order as unsigned ints, the same way as the floats
+      keys[k] = (long) (flip(Float.floatToRawIntBits(minX[k])) ^ Integer.MIN_VALUE) << 32
+          | order[k];
+    }
+    long[] from = keys;
+    long[] to = spareKeys;
+    for (int shift = 32; shift < 64; shift += RADIX_BITS) {
+      int[] count = digitCount;
+      Arrays.fill(count, 0);
+      for (int k = 0; k < n; k++) {
+        count[(int) (from[k] >>> shift) & (RADIX - 1)]++;
+      }
+      for (int d = 0, start = 0; d < RADIX; d++) {
+        int c = count[d];
+        count[d] = start;
+        start += c;
+      }
+      for (int k = 0; k < n; k++) {
+        long key = from[k];
+        to[count[(int) (key >>> shift) & (RADIX - 1)]++] = key;
+      }
+      long[] swap = from;
+      from = to;
+      to = swap;
+    }
+    // an even number of passes leaves the result back in keys
+    for (int k = 0; k < n; k++) {
+      order[k] = (int) keys[k];
+      minX[k] = Float.intBitsToFloat(flip((int) (keys[k] >>> 32) ^ Integer.MIN_VALUE));
+    }
+  }
+
+  /*
+   * Map float bits to ints that order the same way as the floats, and back: negative floats
+   * order backwards as signed ints, so all but their sign bit is flipped.
+   */
+  private static int flip(int bits) {
+    return bits ^ ((bits >> 31) & 0x7FFFFFFF);
+  }
+}
@@ -86,7 +86,7 @@ public class Vector {
    * @return the magnitude
    */
   public float magnitude() {
-    return (float) Math.sqrt(Math.pow(x, 2) + Math.pow(y, 2));
+    return (float) Math.sqrt(x * x + y * y);
   }
 
   /**
@@ -147,12 +147,8 @@ public class Vector {
     if (vector == null) {
       return this;
     }
-    float[] components = vector.components();
-    if (components.length != 2) {
-      throw new RuntimeException("vector addition with invalid Vector2D object");
-    }
-    this.x += components[0];
-    this.y += components[1];
+    this.x += vector.x;
+    this.y += vector.y;
     return this;
   }
 
@@ -166,12 +162,8 @@ public class Vector {
     if (vector == null) {
       return this;
     }
-    float[] components = vector.components();
-    if (components.length != 2) {
-      throw new RuntimeException("vector subtraction with invalid Vector2D object");
-    }
-    this.x -= components[0];
-    this.y -= components[1];
+    this.x -= vector.x;
+    this.y -= vector.y;
     return this;
   }
 
@@ -185,13 +177,7 @@ public class Vector {
     if (vector == null) {
       return x + y;
     }
-    float[] components = vector.components();
-    if (components.length != 2) {
-      throw new RuntimeException("dot product with invalid Vector2D object");
-    }
-    float x2 = components[0];
-    float y2 = components[1];
-    return x * x2 + y * y2;
+    return x * vector.x + y * vector.y;
   }
 
   /**
@@ -0,0 +1,33 @@
+package jengine.record;
+
+import jengine.Scene;
+import jengine.physics.PhysicsWorld;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Saves and restores single states of a simulation. A checkpoint is a recording of one keyframe,
+ * so it can also be opened with a {@link Player}.
+ */
+public final class Checkpoint {
+  private Checkpoint() {}
+
+  public static void save(Path file, PhysicsWorld world, Scene scene) throws IOException {
+    try (Recorder recorder = new Recorder(file, world)) {
+      recorder.record(scene);
+    }
+  }
+
+  /**
+   * Replace the particles of a scene with a saved state, and set the border and gravity of a world
+   * to the saved ones. The world must be the size of the one saved.
+   */
+  public static void restore(Path file, PhysicsWorld world, Scene scene) throws IOException {
+    try (Player player = new Player(file)) {
+      if (player.frames() == 0)
+        throw new IOException("empty checkpoint: " + file);
+      player.apply(player.frames() - 1, world, scene);
+    }
+  }
+}
@@ -0,0 +1,220 @@
+package jengine.record;
+
+import jengine.Scene;
+import jengine.physics.Particles;
+import jengine.physics.PhysicsWorld;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replays a file written by a {@link Recorder} without simulating anything. Opening a recording
+ * reads every frame header once to build an index, then maps the file read-only; after that any
+ * frame can be applied to a scene in any order, at the cost of copying at most two frames.
+ */
+public class Player implements AutoCloseable {
+  // the most bytes mapped by one region; frames never straddle two regions
+  private static final long MAX_REGION_BYTES = 1L << 30;
+
+  private final FileChannel channel;
+  private final float width;
+  private final float height;
+  private final int frames;
+  private final long[] frameOffset;
+  private final int[] frameType;
+  private final int[] frameSize;
+  private final int[] frameBorder;
+  private final float[] frameGravityX;
+  private final float[] frameGravityY;
+  // the keyframe each frame depends on, and the mapped region holding each frame
+  private final int[] frameKeyframe;
+  private final int[] frameRegion;
+  private final List<MappedByteBuffer> regions = new ArrayList<>();
+  private final List<Long> regionStarts = new ArrayList<>();
+  private int current = -1;
+  // the keyframe last copied into a store, to skip copying it again for its deltas
+  private int appliedKeyframe = -1;
+  private Particles appliedParticles;
+  private int appliedLayout;
+
+  public Player(Path file) throws IOException {
+    channel = FileChannel.open(file, StandardOpenOption.READ);
+    try {
+      ByteBuffer header = ByteBuffer.allocate(Recording.FILE_HEADER_BYTES).order(Recording.ORDER);
+      readFully(header, 0);
+      if (header.getLong() != Recording.MAGIC)
+        throw new IOException("not a recording: " + file);
+      int version = header.getInt();
+      if (version != Recording.VERSION)
+        throw new IOException("unsupported recording version " + version);
+      width = header.getFloat();
+      height = header.getFloat();
+
+      long length = channel.size();
+      List<long[]> index = new ArrayList<>();
+      ByteBuffer frameHeader = ByteBuffer.allocate(Recording.FRAME_HEADER_BYTES)
+          .order(Recording.ORDER);
+      long offset = Recording.FILE_HEADER_BYTES;
+      while (offset + Recording.FRAME_HEADER_BYTES <= length) {
+        frameHeader.clear();
+        readFully(frameHeader, offset);
+        long[] entry = new long[7];
+        entry[0] = offset;
+        for (int k = 1; k < 7; k++) {
+          entry[k] = frameHeader.getInt(k * 4 - 4);
+        }
+        // a recorder that did not close leaves its last region zero-filled, so the frames end
+        // at the first header that does not describe a whole frame
+        int type = (int) entry[1];
+        if ((type != Recording.KEYFRAME && type != Recording.DELTA) || entry[2] < 0
+            || entry[6] != Particles.stateBytes((int) entry[2], type == Recording.DELTA)
+            || offset + Recording.FRAME_HEADER_BYTES + entry[6] > length)
+          break;
+        index.add(entry);
+        offset += Recording.FRAME_HEADER_BYTES + entry[6];
+      }
+
+      frames = index.size();
+      frameOffset = new long[frames];
+      frameType = new int[frames];
+      frameSize = new int[frames];
+      frameBorder = new int[frames];
+      frameGravityX = new float[frames];
+      frameGravityY = new float[frames];
+      frameKeyframe = new int[frames];
+      frameRegion = new int[frames];
+      int keyframe = -1;
+      long regionStart = -1;
+      long regionEnd = -1;
+      for (int f = 0; f < frames; f++) {
+        long[] entry = index.get(f);
+        frameOffset[f] = entry[0];
+        frameType[f] = (int) entry[1];
+        frameSize[f] = (int) entry[2];
+        frameBorder[f] = (int) entry[3];
+        frameGravityX[f] = Float.intBitsToFloat((int) entry[4]);
+        frameGravityY[f] = Float.intBitsToFloat((int) entry[5]);
+        if (frameType[f] == Recording.KEYFRAME)
+          keyframe = f;
+        else if (keyframe < 0)
+          throw new IOException("delta frame " + f + " has no keyframe before it");
+        frameKeyframe[f] = keyframe;
+        long end = entry[0] + Recording.FRAME_HEADER_BYTES + entry[6];
+        if (regionStart < 0 || end - regionStart > MAX_REGION_BYTES) {
+          if (regionStart >= 0)
+            map(regionStart, regionEnd);
+          regionStart = entry[0];
+        }
+        regionEnd = end;
+        frameRegion[f] = regions.size();
+      }
+      if (regionStart >= 0)
+        map(regionStart, regionEnd);
+    } catch (IOException | RuntimeException e) {
+      try {
+        channel.close();
+      } catch (IOException suppressed) {
+        e.addSuppressed(suppressed);
+      }
+      throw e;
+    }
+  }
+
+  public int frames() {
+    return frames;
+  }
+
+  public float width() {
+    return width;
+  }
+
+  public float height() {
+    return height;
+  }
+
+  /**
+   * Create a world the size of the recorded one, with the border and gravity of the first frame.
+   */
+  public PhysicsWorld createWorld() {
+    PhysicsWorld world = new PhysicsWorld(width, height);
+    if (frames > 0) {
+      world.setBorder(frameBorder[0]);
+      world.setGravity(new float[] {frameGravityX[0], frameGravityY[0]});
+    }
+    return world;
+  }
+
+  /**
+   * Apply the next frame, starting from the first.
+   *
+   * @return false once every frame has been applied
+   */
+  public boolean next(PhysicsWorld world, Scene scene) {
+    if (current + 1 >= frames)
+      return false;
+    apply(current + 1, world, scene);
+    return true;
+  }
+
+  /**
+   * Replace the particles of a scene with those of some frame, and set the border and gravity of
+   * a world to the recorded ones. Handles taken from the scene before a keyframe is copied in stop
+   * resolving.
+   */
+  public void apply(int frame, PhysicsWorld world, Scene scene) {
+    if (frame < 0 || frame >= frames)
+      throw new IndexOutOfBoundsException("no frame " + frame + " in a recording of " + frames);
+    if (world.width() != width || world.height() != height) {
+      throw new IllegalArgumentException("recording is of a " + width + "x" + height
+          + " world, not " + world.width() + "x" + world.height());
+    }
+    Particles particles = scene.particles();
+    int keyframe = frameKeyframe[frame];
+    boolean loaded = keyframe == appliedKeyframe && particles == appliedParticles
+        && particles.layoutVersion() == appliedLayout;
+    if (!loaded || frame == keyframe) {
+      particles.readState(payload(keyframe), frameSize[keyframe], false);
+      scene.resetSpawnOrder();
+      appliedKeyframe = keyframe;
+      appliedParticles = particles;
+      appliedLayout = particles.layoutVersion();
+    }
+    if (frame != keyframe)
+      particles.readState(payload(frame), frameSize[frame], true);
+    if (world.border() != frameBorder[frame])
+      world.setBorder(frameBorder[frame]);
+    world.setGravity(new float[] {frameGravityX[frame], frameGravityY[frame]});
+    current = frame;
+  }
+
+  @Override
+  public void close() throws IOException {
+    regions.clear();
+    channel.close();
+  }
+
+  private ByteBuffer payload(int frame) {
+    int r = frameRegion[frame];
+    int at = (int) (frameOffset[frame] - regionStarts.get(r)) + Recording.FRAME_HEADER_BYTES;
+    return regions.get(r).duplicate().order(Recording.ORDER).position(at);
+  }
+
+  private void map(long start, long end) throws IOException {
+    regions.add(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+    regionStarts.add(start);
+  }
+
+  private void readFully(ByteBuffer dst, long offset) throws IOException {
+    while (dst.hasRemaining()) {
+      if (channel.read(dst, offset + dst.position()) < 0)
+        throw new IOException("recording ends early");
+    }
+    dst.flip();
+  }
+}
@@ -0,0 +1,113 @@
+package jengine.record;
+
+import jengine.Scene;
+import jengine.physics.Particles;
+import jengine.physics.PhysicsWorld;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Records the state of a world and scene, one frame per call to {@link #record(Scene)}, into a
+ * memory-mapped file that a {@link Player} can replay. The file is mapped in large regions as it
+ * grows, so recording a frame is a few bulk copies into the page cache.
+ *
+ * Frames are keyframes holding every particle field, or deltas holding only the fields that move.
+ * A keyframe is written every {@link #setKeyframeInterval(int) interval} frames and whenever
+ * particles have been added, removed, moved between indices or restyled since the last keyframe.
+ */
+public class Recorder implements AutoCloseable {
+  // bytes mapped at a time; a larger frame gets a region of its own size
+  private static final long REGION_BYTES = 64L << 20;
+
+  private final FileChannel channel;
+  private final PhysicsWorld world;
+  private MappedByteBuffer region;
+  private long regionStart = 0;
+  private long position = 0;
+  private int keyframeInterval = 60;
+  private int framesSinceKeyframe = 0;
+  private int frames = 0;
+  private Particles keyframeParticles;
+  private int keyframeLayout;
+
+  /**
+   * Create or overwrite a recording.
+   */
+  public Recorder(Path file, PhysicsWorld world) throws IOException {
+    this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    this.world = world;
+    reserve(Recording.FILE_HEADER_BYTES);
+    Recording.writeFileHeader(region, world.width(), world.height());
+    position = Recording.FILE_HEADER_BYTES;
+  }
+
+  /**
+   * Set the most frames between two keyframes. An interval of 1 records every frame in full.
+   */
+  public void setKeyframeInterval(int frames) {
+    if (frames < 1)
+      throw new IllegalArgumentException("keyframe interval must be at least 1");
+    keyframeInterval = frames;
+  }
+
+  public int frames() {
+    return frames;
+  }
+
+  /**
+   * Append the current state of a scene, with the border and gravity of the world.
+   */
+  public void record(Scene scene) throws IOException {
+    Particles particles = scene.particles();
+    boolean keyframe = frames == 0 || framesSinceKeyframe + 1 >= keyframeInterval
+        || particles != keyframeParticles || particles.layoutVersion() != keyframeLayout;
+    int n = particles.size();
+    int payload = Particles.stateBytes(n, !keyframe);
+    reserve(Recording.FRAME_HEADER_BYTES + payload);
+    float[] gravity = world.gravity();
+    region.putInt(keyframe ? Recording.KEYFRAME : Recording.DELTA);
+    region.putInt(n);
+    region.putInt(world.border());
+    region.putFloat(gravity[0]);
+    region.putFloat(gravity[1]);
+    region.putInt(payload);
+    particles.writeState(region, !keyframe);
+    position += Recording.FRAME_HEADER_BYTES + payload;
+    frames++;
+    if (keyframe) {
+      keyframeParticles = particles;
+      keyframeLayout = particles.layoutVersion();
+      framesSinceKeyframe = 0;
+    } else {
+      framesSinceKeyframe++;
+    }
+  }
+
+  /**
+   * Cut the file down to the frames written and close it.
+   */
+  @Override
+  public void close() throws IOException {
+    region = null;
+    channel.truncate(position);
+    channel.close();
+  }
+
+  /*
+   * Make sure the current region has room for some number of bytes past the write position,
+   * mapping a new region from the write position if not.
+   */
+  private void reserve(int bytes) throws IOException {
+    if (region != null && position + bytes <= regionStart + region.capacity())
+      return;
+    regionStart = position;
+    region = channel.map(FileChannel.MapMode.READ_WRITE, position,
+        Math.max(REGION_BYTES, bytes));
+    region.order(Recording.ORDER);
+  }
+}
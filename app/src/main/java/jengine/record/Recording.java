@@ -0,0 +1,37 @@
+package jengine.record;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The layout of a recording file. All values are little-endian.
+ *
+ * <pre>
+ * file header   magic (8) | version (4) | world width (4) | world height (4) | padding (12)
+ * frame header  type (4) | particles (4) | border (4) | gravity x (4) | gravity y (4) |
+ *               payload bytes (4)
+ * payload       Particles.writeState, full for keyframes, kinematics only for deltas
+ * </pre>
+ *
+ * A delta frame holds positions, previous positions and flags only; radius, mass and colour come
+ * from the closest keyframe before it, so any frame can be restored from at most two frames.
+ */
+final class Recording {
+  static final long MAGIC = 0x4345524E474E454AL; // "JENGNREC" read little-endian
+  static final int VERSION = 1;
+  static final int FILE_HEADER_BYTES = 32;
+  static final int FRAME_HEADER_BYTES = 24;
+  static final int KEYFRAME = 1;
+  static final int DELTA = 2;
+  static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+  private Recording() {}
+
+  static void writeFileHeader(ByteBuffer dst, float width, float height) {
+    dst.putLong(MAGIC);
+    dst.putInt(VERSION);
+    dst.putFloat(width);
+    dst.putFloat(height);
+    dst.position(dst.position() + 12);
+  }
+}
@@ -0,0 +1,173 @@
+package jengine.physics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.SplittableRandom;
+
+import jengine.JEngine;
+import jengine.metrics.Metrics;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Steady-state stepping must not allocate: once the JIT has compiled the step, every border and
+ * broadphase, with and without the SIMD kernels, steps with no garbage at all, and so does a world
+ * measuring itself into metrics while no flight recording is running, putting particles to sleep
+ * or reordering them.
+ *
+ * A parallel world reuses its fork/join tasks, but each time the stepping thread blocks in
+ * {@link java.util.concurrent.ForkJoinPool#invoke} the pool allocates a small node to wait on,
+ * so for that the test only bounds what one step allocates.
+ */
+class PhysicsWorldAllocationTest {
+  private static final int PARTICLES = 3000;
+  private static final float RADIUS = 3f;
+  private static final float DT = 1f / 120f;
+  private static final int SUB_STEPS = 2;
+  private static final int WARMUP_WINDOW = 100;
+  private static final int MAX_WARMUP_WINDOWS = 40;
+  private static final int MEASURED_STEPS = 200;
+  private static final int MEASURED_WINDOWS = 5;
+  private static final int THREADS = 4;
+  // a few dozen bytes of wait node for each of the seven pool invocations of a two-substep step;
+  // building the fork/join tasks anew took over 400
+  private static final long MAX_PARALLEL_BYTES_PER_STEP = 256;
+
+  private static final int[] BORDERS = {
+      JEngine.BORDER_RECT, JEngine.BORDER_CIRCLE, JEngine.BORDER_NONE};
+  private static final int[] BROADPHASES = {
+      JEngine.BROADPHASE_UNIFORM, JEngine.BROADPHASE_HIERARCHICAL, JEngine.BROADPHASE_SAP,
+      JEngine.BROADPHASE_AUTO};
+
+  @Test
+  void stepDoesNotAllocate() {
+    for (boolean simd : new boolean[] {false, true}) {
+      for (int border : BORDERS) {
+        for (int broadPhase : BROADPHASES) {
+          float size = (float) Math.ceil(Math.sqrt(PARTICLES * RADIUS * RADIUS * 16f));
+          PhysicsWorld world = new PhysicsWorld(size, size);
+          world.setSimd(simd);
+          world.setBorder(border);
+          world.setBroadPhase(broadPhase);
+          Particles p;
+          if (border == JEngine.BORDER_NONE) {
+            // nothing bounds where particles go without a border, and a hashed grid allocates the
+            // first time it holds more cells than ever before, so hold the particles still
+            world.setGravity(new float[] {0f, 0f});
+            p = lattice(size);
+          } else {
+            p = random(size);
+          }
+          String config = "simd=" + world.simd() + " border=" + border + " broadphase="
+              + broadPhase;
+          assertEquals(0L, leastAllocated(world, p, 0), config);
+        }
+      }
+    }
+  }
+
+  @Test
+  void measuredStepDoesNotAllocate() {
+    PhysicsWorld world = world();
+    world.setMetrics(new Metrics());
+    Particles p = random(world.width());
+    assertEquals(0L, leastAllocated(world, p, 0), "with metrics");
+  }
+
+  @Test
+  void sleepingStepDoesNotAllocate() {
+    PhysicsWorld world = world();
+    world.setSleeping(0.2f, 10);
+    Particles p = random(world.width());
+    assertEquals(0L, leastAllocated(world, p, 0), "with sleeping");
+  }
+
+  @Test
+  void reorderingStepDoesNotAllocate() {
+    PhysicsWorld world = world();
+    world.setReorderInterval(1);
+    Particles p = random(world.width());
+    assertEquals(0L, leastAllocated(world, p, 0), "reordering every step");
+  }
+
+  @Test
+  void parallelStepOnlyAllocatesPoolWaits() {
+    for (int broadPhase : BROADPHASES) {
+      PhysicsWorld world = world();
+      world.setParallelism(THREADS);
+      world.setChunkSize(PARTICLES / (THREADS * 2));
+      world.setBroadPhase(broadPhase);
+      Particles p = random(world.width());
+      try {
+        long least = leastAllocated(world, p, MAX_PARALLEL_BYTES_PER_STEP);
+        assertTrue(least <= MAX_PARALLEL_BYTES_PER_STEP * MEASURED_STEPS,
+            least / MEASURED_STEPS + " bytes per step with broadphase " + broadPhase);
+      } finally {
+        world.setParallelism(1);
+      }
+    }
+  }
+
+  private static PhysicsWorld world() {
+    float size = (float) Math.ceil(Math.sqrt(PARTICLES * RADIUS * RADIUS * 16f));
+    PhysicsWorld world = new PhysicsWorld(size, size);
+    world.setBorder(JEngine.BORDER_RECT);
+    return world;
+  }
+
+  /*
+   * Warm up until a window of steps allocates no more than allowed, then return the least that a
+   * window of measured steps allocates. The JIT can recompile part of the step long after warm-up
+   * and allocate while that part runs deoptimised, so one window over the limit is not a failure;
+   * a leak allocates in every window.
+   */
+  private static long leastAllocated(PhysicsWorld world, Particles p, long allowedPerStep) {
+    for (int w = 0; w < MAX_WARMUP_WINDOWS; w++) {
+      if (allocated(world, p, WARMUP_WINDOW) <= allowedPerStep * WARMUP_WINDOW)
+        break;
+    }
+    long least = Long.MAX_VALUE;
+    for (int w = 0; w < MEASURED_WINDOWS && least > allowedPerStep * MEASURED_STEPS; w++) {
+      least = Math.min(least, allocated(world, p, MEASURED_STEPS));
+    }
+    return least;
+  }
+
+  private static long allocated(PhysicsWorld world, Particles p, int steps) {
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().threadId();
+    long before = threads.getThreadAllocatedBytes(thread);
+    for (int s = 0; s < steps; s++) {
+      world.step(p, DT, SUB_STEPS);
+    }
+    return threads.getThreadAllocatedBytes(thread) - before;
+  }
+
+  private static Particles random(float size) {
+    SplittableRandom random = new SplittableRandom(42);
+    Particles p = new Particles(PARTICLES);
+    for (int i = 0; i < PARTICLES; i++) {
+      float x = RADIUS + (float) random.nextDouble() * (size - RADIUS * 2f);
+      float y = RADIUS + (float) random.nextDouble() * (size - RADIUS * 2f);
+      float vx = (float) random.nextDouble(-2, 2);
+      float vy = (float) random.nextDouble(-2, 2);
+      p.add(x, y, x - vx, y - vy, RADIUS, 1f, true);
+    }
+    return p;
+  }
+
+  private static Particles lattice(float size) {
+    Particles p = new Particles(PARTICLES);
+    float spacing = RADIUS * 3f;
+    int perRow = (int) (size / spacing);
+    for (int i = 0; i < PARTICLES; i++) {
+      float x = spacing * (i % perRow + 0.5f);
+      float y = spacing * (i / perRow + 0.5f);
+      p.add(x, y, x, y, RADIUS, 1f, true);
+    }
+    return p;
+  }
+}
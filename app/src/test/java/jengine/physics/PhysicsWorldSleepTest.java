@@ -0,0 +1,112 @@
+package jengine.physics;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import jengine.JEngine;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * A pile dropped into a box must settle and mostly fall asleep, a particle landing on it must only
+ * wake the part of the pile around the impact, and that part must fall asleep again.
+ */
+class PhysicsWorldSleepTest {
+  private static final int PARTICLES = 2000;
+  private static final int PER_ROW = 50;
+  private static final float RADIUS = 4f;
+  private static final float SIZE = 500f;
+  private static final float DT = 1f / 120f;
+  private static final int SUB_STEPS = 2;
+  private static final float SLEEP_THRESHOLD = 0.2f;
+  private static final int SLEEP_STEPS = 60;
+  private static final int SETTLE_STEPS = 3000;
+  private static final int IMPACT_STEPS = 600;
+
+  @Test
+  void pileFallsAsleep() {
+    PhysicsWorld world = world();
+    Particles p = settledPile(world);
+    int sleeping = sleeping(p);
+    assertTrue(sleeping >= PARTICLES * 7 / 10, "only " + sleeping + " asleep after settling");
+  }
+
+  @Test
+  void impactWakesOnlyPartOfThePile() {
+    PhysicsWorld world = world();
+    Particles p = settledPile(world);
+    int before = sleeping(p);
+    assertTrue(before >= PARTICLES * 7 / 10, "only " + before + " asleep before the impact");
+    drop(p);
+    int fewest = before;
+    for (int s = 0; s < IMPACT_STEPS; s++) {
+      world.step(p, DT, SUB_STEPS);
+      fewest = Math.min(fewest, sleeping(p));
+    }
+    // the particle rolls off the top of the pile, so it wakes some way down the slope, not just
+    // where it lands; most of the pile must sleep through it all the same
+    assertTrue(fewest >= before / 2, "impact woke " + (before - fewest) + " of " + before);
+  }
+
+  @Test
+  void pileFallsAsleepAgainAfterImpact() {
+    PhysicsWorld world = world();
+    Particles p = settledPile(world);
+    int before = sleeping(p);
+    assertTrue(before >= PARTICLES * 7 / 10, "only " + before + " asleep before the impact");
+    drop(p);
+    int s = 0;
+    // past the sleep delay, so that the particles woken by the impact must have slept again
+    while (s < SLEEP_STEPS || sleeping(p) < before) {
+      assertTrue(s < IMPACT_STEPS, "only " + sleeping(p) + " of " + before + " asleep again");
+      world.step(p, DT, SUB_STEPS);
+      s++;
+    }
+  }
+
+  private static PhysicsWorld world() {
+    PhysicsWorld world = new PhysicsWorld(SIZE, SIZE);
+    world.setBorder(JEngine.BORDER_RECT);
+    world.setSleeping(SLEEP_THRESHOLD, SLEEP_STEPS);
+    return world;
+  }
+
+  /*
+   * Rows of particles stacked from the floor, a little off a lattice so that they slump into a
+   * pile, stepped until it has settled.
+   */
+  private static Particles settledPile(PhysicsWorld world) {
+    Particles p = new Particles(PARTICLES + 1);
+    float spacing = RADIUS * 2.45f;
+    for (int i = 0; i < PARTICLES; i++) {
+      float x = RADIUS + 1f + (i % PER_ROW) * spacing + (i / PER_ROW % 2) * RADIUS / 4f;
+      float y = SIZE - RADIUS - 1f - (i / PER_ROW) * RADIUS * 2.5f;
+      p.add(x, y, x, y, RADIUS, 1f, true);
+    }
+    for (int s = 0; s < SETTLE_STEPS; s++) {
+      world.step(p, DT, SUB_STEPS);
+    }
+    return p;
+  }
+
+  /*
+   * Throw one more particle down onto the middle of the pile.
+   */
+  private static void drop(Particles p) {
+    float top = SIZE;
+    for (int i = 0; i < p.size(); i++) {
+      top = Math.min(top, p.y(i));
+    }
+    float x = SIZE / 2f;
+    float y = top - RADIUS * 10f;
+    p.add(x, y, x, y - 3f, RADIUS, 1f, true);
+  }
+
+  private static int sleeping(Particles p) {
+    int sleeping = 0;
+    for (int i = 0; i < p.size(); i++) {
+      if (p.isSleeping(i))
+        sleeping++;
+    }
+    return sleeping;
+  }
+}
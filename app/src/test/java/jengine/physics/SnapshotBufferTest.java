@@ -0,0 +1,57 @@
+package jengine.physics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * A reader racing a writer through the triple buffer must only ever see whole snapshots, each at
+ * least as new as the last, and must end up with the last one published.
+ */
+class SnapshotBufferTest {
+  private static final int PARTICLES = 2000;
+  private static final long SNAPSHOTS = 20000;
+
+  @Test
+  void readerNeverSeesTornOrOlderSnapshots() throws InterruptedException {
+    SnapshotBuffer buffer = new SnapshotBuffer();
+    Particles p = new Particles(PARTICLES);
+    for (int i = 0; i < PARTICLES; i++) {
+      p.add(i, i, i, i, 1f, 1f, true);
+    }
+    // every particle of the snapshot for a step has that step as its colour
+    Thread writer = new Thread(() -> {
+      for (long step = 1; step <= SNAPSHOTS; step++) {
+        for (int i = 0; i < PARTICLES; i++) {
+          p.setColour(i, (int) step);
+        }
+        buffer.back().capture(p, step);
+        buffer.publish();
+      }
+    }, "snapshot-writer");
+    writer.start();
+
+    long last = 0;
+    long reads = 0;
+    boolean done = false;
+    while (!done) {
+      // read the writer's state first, so a finished writer's last snapshot is always seen
+      done = !writer.isAlive();
+      Snapshot snapshot = buffer.latest();
+      reads++;
+      long step = snapshot.step();
+      assertTrue(step >= last, "went back from step " + last + " to " + step);
+      last = step;
+      if (step == 0)
+        continue;
+      assertEquals(PARTICLES, snapshot.size());
+      for (int i = 0; i < snapshot.size(); i++) {
+        assertEquals((int) step, snapshot.colour(i), "torn snapshot of step " + step);
+      }
+    }
+    writer.join();
+    assertEquals(SNAPSHOTS, last);
+    assertTrue(reads > 1);
+  }
+}